@@ -0,0 +1,106 @@
+package jlack;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Each stage of running a script on its own: lexing the source, parsing
+// its tokens and interpreting the resolved, optimised tree. Input comes
+// from a reader that repeats the workload's input forever, and output and
+// error messages are thrown away, so only the interpreter is measured.
+//
+// Run with -prof gc for allocation rates next to the throughput.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+    @Param({"FIZZBUZZ", "FIBONACCI", "ARITHMETIC", "CONCAT", "NESTED", "BOOLEAN", "WRITE"})
+    public Workload workload;
+
+    private Interpreter interpreter;
+    private Lack lack;
+    private TokenBuffer tokens;
+    private List<Stmt> statements;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Output output = new Output(
+            Channels.newChannel(OutputStream.nullOutputStream()), StandardCharsets.UTF_8
+        );
+        interpreter = new Interpreter(new Input(new Repeating(workload.input), StandardCharsets.UTF_8), output);
+        lack = new Lack(interpreter, new PrintStream(OutputStream.nullOutputStream()));
+
+        tokens = new Lexer(workload.source, lack).lexTokens();
+        statements = new Parser(tokens, lack).parse();
+        new Resolver(lack).resolve(statements);
+        if (lack.hadError) throw new IllegalStateException(workload + " doesn't compile");
+        statements = new Optimiser().optimise(statements);
+    }
+
+    @Benchmark
+    public TokenBuffer lex() {
+        return new Lexer(workload.source, lack).lexTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens, lack).parse();
+    }
+
+    // the same interpreter every time, which is what a shell or a
+    // prelude's globals see, and keeps loops it compiled
+    @Benchmark
+    public Object interpret() {
+        interpreter.interpret(statements);
+        interpreter.output.flush();
+        return interpreter.globals;
+    }
+
+    // bytes that start over whenever they run out, for scripts that read
+    private static final class Repeating implements ReadableByteChannel {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Repeating(String text) {
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            if (bytes.length == 0) return -1;
+            int count = Math.min(buffer.remaining(), bytes.length - position);
+            buffer.put(bytes, position, count);
+            position = (position + count) % bytes.length;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,76 @@
+package jlack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+// The scripts the benchmarks run, each with what it reads from stdin. The
+// examples come from the jar's resources, the rest stress one hot path.
+public enum Workload {
+    FIZZBUZZ(example("fizzbuzz.lk"), "1\n300\n"),
+    FIBONACCI(example("fibonacci.lk"), "70\n"),
+    // numbers only, the loop every backend tries hardest on
+    ARITHMETIC(String.join("\n",
+        "let total = 0;",
+        "for let i = 0; i < 20000; i = i + 1; {",
+        "    total = total + i * 3 % 7 - i / 5;",
+        "}",
+        "writeln total;"
+    ), ""),
+    // one long string grown a piece at a time, then compared
+    CONCAT(String.join("\n",
+        "let s = \"\";",
+        "for let i = 0; i < 2000; i = i + 1; {",
+        "    s = s + \"ab\";",
+        "}",
+        "writeln s == \"\";"
+    ), ""),
+    NESTED(nested(32), ""),
+    BOOLEAN(chain(64), ""),
+    // output bound, every pass writes
+    WRITE(String.join("\n",
+        "for let i = 0; i < 5000; i = i + 1; {",
+        "    write i;",
+        "    writeln \" line\";",
+        "}"
+    ), "");
+
+    final String source;
+    final String input;
+
+    Workload(String source, String input) {
+        this.source = source;
+        this.input = input;
+    }
+
+    private static String example(String name) {
+        try (InputStream in = Workload.class.getResourceAsStream("/examples/" + name)) {
+            if (in == null) throw new IllegalStateException("Missing example " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    // blocks depth deep that each declare a variable, run in a loop
+    private static String nested(int depth) {
+        StringBuilder source = new StringBuilder("let sum = 0;\nrepeat {\n");
+        for (int i = 0; i < depth; i++) source.append("{ let v").append(i).append(" = ").append(i).append(";\n");
+        for (int i = depth - 1; i >= 0; i--) source.append("sum = sum + v").append(i).append("; }\n");
+        return source.append("} for 500\nwriteln sum;\n").toString();
+    }
+
+    // a condition of length comparisons joined by and and or
+    private static String chain(int length) {
+        StringBuilder condition = new StringBuilder("i > -1");
+        for (int i = 1; i < length; i++) {
+            condition.append(i % 2 == 0 ? " and " : " or not ").append("i < ").append(i * 100);
+        }
+        return "let hits = 0;\n"
+            + "for let i = 0; i < 2000; i = i + 1; {\n"
+            + "    if " + condition + " hits = hits + 1;\n"
+            + "}\n"
+            + "writeln hits;\n";
+    }
+}
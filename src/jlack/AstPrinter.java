@@ -3,6 +3,7 @@ package jlack;
 import jlack.Expr.Assign;
 import jlack.Expr.Eval;
 import jlack.Expr.Logical;
+import jlack.Expr.Xor;
 import jlack.Expr.Variable;
 
 class AstPrinter implements Expr.Visitor<String> {
@@ -71,8 +72,12 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitLogicalExpr(Logical expr) {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'visitLogicalExpr'");
+        return parenthesise(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitXorExpr(Xor expr) {
+        return parenthesise(expr.operator.lexeme, expr.left, expr.right);
     }
 
     @Override
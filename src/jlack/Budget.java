@@ -0,0 +1,59 @@
+package jlack;
+
+import java.util.concurrent.TimeUnit;
+
+// How long a script may run. Without functions only a loop can run
+// forever, so every backend calls pass() at the start of each pass of each
+// loop, and the budget is counted in passes, the nearest thing the tree has
+// to instructions. Every CHECK_INTERVAL passes it looks at the clock and
+// yields, so scripts sharing a few carrier or pool threads take turns.
+// Running out is a runtime error at the loop that did it.
+final class Budget {
+    // passes between looking at the clock and yielding
+    static final int CHECK_INTERVAL = 1024;
+
+    private final long passes;
+    private final long timeout;
+    // System.nanoTime() at the start and the nanoseconds allowed after it,
+    // compared as a difference so neither can overflow
+    private final long start;
+    private final long timeoutNanos;
+    // passes left once the ones before the next check are done
+    private long remaining;
+    private int interval;
+    private int untilCheck;
+
+    // passes is Long.MAX_VALUE and timeout 0 for no limit
+    Budget(long passes, long timeoutMillis) {
+        this.passes = passes;
+        this.timeout = timeoutMillis;
+        this.start = System.nanoTime();
+        // saturates at Long.MAX_VALUE, centuries away
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.remaining = passes;
+        this.untilCheck = this.interval = nextInterval();
+    }
+
+    // the pass is the loop on line's, which gets the blame if it is one too many
+    void pass(int line) {
+        if (--untilCheck == 0) check(line);
+    }
+
+    private void check(int line) {
+        remaining -= interval;
+        if (remaining < 0) {
+            throw new RuntimeError(line, "Exceeded the budget of " + passes + " loop passes");
+        }
+        if (timeout > 0 && System.nanoTime() - start > timeoutNanos) {
+            throw new RuntimeError(line, "Exceeded the timeout of " + timeout + "ms");
+        }
+        // a virtual thread gives its carrier to the next script
+        Thread.yield();
+        untilCheck = interval = nextInterval();
+    }
+
+    // checks land exactly on the pass after the last one allowed
+    private int nextInterval() {
+        return remaining >= CHECK_INTERVAL ? CHECK_INTERVAL : (int)remaining + 1;
+    }
+}
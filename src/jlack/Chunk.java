@@ -0,0 +1,93 @@
+package jlack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Chunk {
+    // operands follow the opcode inline in code[]
+    static final int CONSTANT = 0;       // index
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+    static final int GET_GLOBAL = 5;     // slot, token of the name
+    static final int SET_GLOBAL = 6;     // slot, token of the name
+    static final int DEFINE_GLOBAL = 7;  // slot
+    static final int GET_LOCAL = 8;      // register
+    static final int SET_LOCAL = 9;      // register
+    static final int DEFINE_LOCAL = 10;  // register
+    static final int NOT = 11;
+    static final int NEGATE = 12;        // token
+    static final int EQUAL = 13;
+    static final int NOT_EQUAL = 14;
+    static final int BINARY = 15;        // token, for the operators below
+    static final int ADD = 16;           // token
+    static final int SUBTRACT = 17;      // token
+    static final int LESS = 18;          // token
+    static final int LESS_EQUAL = 19;    // token
+    static final int GREATER = 20;       // token
+    static final int GREATER_EQUAL = 21; // token
+    static final int JUMP = 22;          // target
+    static final int JUMP_IF_FALSE = 23; // target, pops the condition
+    static final int JUMP_IF_TRUE_KEEP = 24;  // target
+    static final int JUMP_IF_FALSE_KEEP = 25; // target
+    static final int WRITE = 26;         // index of the line ending
+    static final int READ = 27;          // token, register or -1-slot for a global, token of the name
+    static final int READNUM = 28;       // token, register or -1-slot for a global, token of the name
+    static final int REPEAT_COUNT = 29;  // token
+    static final int REPEAT_NEXT = 30;   // target
+    static final int RETURN = 32;
+    // fused forms for the common statement and loop shapes
+    static final int STORE_GLOBAL = 33;  // slot, token of the name, pops the value
+    static final int STORE_LOCAL = 34;   // register, pops the value
+    static final int JUMP_IF_NOT_LESS = 35;          // target, token
+    static final int JUMP_IF_NOT_LESS_EQUAL = 36;    // target, token
+    static final int JUMP_IF_NOT_GREATER = 37;       // target, token
+    static final int JUMP_IF_NOT_GREATER_EQUAL = 38; // target, token
+    static final int XOR = 39;           // token, for xor and xnor
+    static final int EVAL = 40;          // token, index of the Compiler.EvalSite
+    static final int LOOP = 41;          // line, starts every pass of a loop
+
+    int[] code = new int[64];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> values = new HashMap<>();
+    private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+    int registers = 0;
+    int maxStack = 0;
+
+    void emit(int word) {
+        if (count == code.length) code = Arrays.copyOf(code, count * 2);
+        code[count++] = word;
+    }
+
+    int addConstant(Object value) {
+        // strings are truthy or not by identity, so only interned ones are shared
+        if (value instanceof String && value != ((String)value).intern()) return add(value);
+        Integer i = values.get(value);
+        if (i == null) {
+            i = add(value);
+            values.put(value, i);
+        }
+        return i;
+    }
+
+    // tokens only carry the line for errors, they are never equal to each other
+    int addToken(Token token) {
+        Integer i = tokens.get(token);
+        if (i == null) {
+            i = add(token);
+            tokens.put(token, i);
+        }
+        return i;
+    }
+
+    private int add(Object value) {
+        constants.add(value);
+        return constants.size()-1;
+    }
+}
@@ -0,0 +1,55 @@
+package jlack;
+
+// base of the hidden classes LoopCompiler generates for hot loops
+abstract class CompiledLoop {
+    // give up on a loop whose variables keep failing the entry guard
+    static final int MAX_DEOPTS = 3;
+
+    final Object[] constants;
+    // variables from outside the loop, as ancestor depth and slot pairs
+    int[] depths;
+    int[] slots;
+    int deopts = 0;
+
+    CompiledLoop(Object[] constants) {
+        this.constants = constants;
+    }
+
+    // live holds every outer variable, then the remaining count of a repeat-for
+    abstract void run(Interpreter interpreter, double[] live);
+
+    // called by generated code, which saves its variables before throwing
+    RuntimeError error(int token, String msg) {
+        return new RuntimeError((Token)constants[token], msg);
+    }
+
+    // moves the loop's variables out of the Env, runs the rest of the loop
+    // and moves them back. False means a variable was not a number, so the
+    // caller has to carry on walking the tree.
+    boolean enter(Interpreter interpreter, double remaining) {
+        double[] live = new double[slots.length + 1];
+        for (int i = 0; i < slots.length; i++) {
+            Object value = frame(interpreter, i)[slots[i]];
+            if (!(value instanceof Double)) {
+                deopts++;
+                return false;
+            }
+            live[i] = (double)value;
+        }
+        live[slots.length] = remaining;
+
+        try {
+            run(interpreter, live);
+        } finally {
+            for (int i = 0; i < slots.length; i++) {
+                frame(interpreter, i)[slots[i]] = live[i];
+            }
+        }
+        return true;
+    }
+
+    private Object[] frame(Interpreter interpreter, int i) {
+        if (depths[i] == Resolver.GLOBAL) return interpreter.globals.values;
+        return interpreter.env.ancestor(depths[i]).values;
+    }
+}
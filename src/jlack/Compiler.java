@@ -0,0 +1,416 @@
+package jlack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jlack.Chunk.*;
+
+// lowers resolved statements into a Chunk for the VM
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static class Loop {
+        final Loop enclosing;
+        final List<Integer> breaks = new ArrayList<>();
+        final List<Integer> continues = new ArrayList<>();
+
+        Loop(Loop enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    // what an EVAL needs to compile its string, kept among the constants
+    static final class EvalSite {
+        final Resolver.Locals locals;
+        private final List<Integer> frames;
+
+        private EvalSite(Resolver.Locals locals, List<Integer> frames) {
+            this.locals = locals;
+            this.frames = frames;
+        }
+    }
+
+    private final Chunk chunk = new Chunk();
+    // first register of every block we are inside of, innermost last
+    private final List<Integer> frames = new ArrayList<>();
+    private int registers = 0;
+    private int stack = 0;
+    private Loop loop = null;
+
+    Compiler() {}
+
+    // compiles an eval'd expression against the registers of its site, the
+    // chunk returns with the value on top of the stack
+    static Chunk compileEval(EvalSite site, Expr expr) {
+        Compiler compiler = new Compiler();
+        compiler.frames.addAll(site.frames);
+        compiler.compile(expr);
+        compiler.emit(RETURN, 0);
+        return compiler.chunk;
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emit(RETURN, 0);
+        return chunk;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots == 0) {
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            return null;
+        }
+        frames.add(registers);
+        registers += stmt.slots;
+        chunk.registers = Math.max(chunk.registers, registers);
+
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+
+        registers = frames.remove(frames.size()-1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compileEffect(stmt.expression);
+        return null;
+    }
+
+    // compiles an expression whose value is thrown away
+    private void compileEffect(Expr expr) {
+        if (expr instanceof Expr.Assign) {
+            // the assigned value is not needed, so store it without a POP
+            Expr.Assign assign = (Expr.Assign)expr;
+            compile(assign.value);
+            if (assign.depth == Resolver.GLOBAL) {
+                emit(STORE_GLOBAL, -1);
+                chunk.emit(assign.slot);
+                chunk.emit(chunk.addToken(assign.name));
+            } else {
+                emit(STORE_LOCAL, -1);
+                chunk.emit(register(assign.depth, assign.slot));
+            }
+            return;
+        }
+        compile(expr);
+        emit(POP, -1);
+    }
+
+    @Override
+    public Void visitWriteStmt(Stmt.Write stmt) {
+        compile(stmt.expression);
+        emit(WRITE, -1);
+        chunk.emit(chunk.addConstant(stmt.end));
+        return null;
+    }
+
+    @Override
+    public Void visitReadStmt(Stmt.Read stmt) {
+        emit(READ, 0);
+        chunk.emit(chunk.addToken(stmt.token));
+        chunk.emit(target(stmt.depth, stmt.slot));
+        chunk.emit(chunk.addToken(stmt.name));
+        return null;
+    }
+
+    @Override
+    public Void visitReadNumStmt(Stmt.ReadNum stmt) {
+        emit(READNUM, 0);
+        chunk.emit(chunk.addToken(stmt.token));
+        chunk.emit(target(stmt.depth, stmt.slot));
+        chunk.emit(chunk.addToken(stmt.name));
+        return null;
+    }
+
+    @Override
+    public Void visitLetStmt(Stmt.Let stmt) {
+        if (stmt.initialiser != null) {
+            compile(stmt.initialiser);
+        } else {
+            emit(NIL, 1);
+        }
+
+        if (frames.isEmpty()) {
+            emit(DEFINE_GLOBAL, -1);
+            chunk.emit(stmt.slot);
+        } else {
+            emit(DEFINE_LOCAL, -1);
+            chunk.emit(frames.get(frames.size()-1) + stmt.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int thenJump = compileCondition(stmt.condition);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            patch(thenJump);
+            return null;
+        }
+
+        int elseJump = emitJump(JUMP, 0);
+        patch(thenJump);
+        compile(stmt.elseBranch);
+        patch(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop = new Loop(loop);
+
+        int start = chunk.count;
+        int exitJump = stmt.condition == null ? -1 : compileCondition(stmt.condition);
+        emit(LOOP, 0);
+        chunk.emit(stmt.line);
+
+        compile(stmt.body);
+        patchAll(loop.continues);
+        if (stmt.increment != null) compileEffect(stmt.increment);
+        emit(JUMP, 0);
+        chunk.emit(start);
+
+        if (exitJump != -1) patch(exitJump);
+        patchAll(loop.breaks);
+        loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+        loop = new Loop(loop);
+
+        int start = chunk.count;
+        emit(LOOP, 0);
+        chunk.emit(stmt.line);
+        compile(stmt.body);
+        patchAll(loop.continues);
+        compile(stmt.condition);
+        emit(JUMP_IF_FALSE, -1);
+        chunk.emit(start);
+
+        patchAll(loop.breaks);
+        loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatForStmt(Stmt.RepeatFor stmt) {
+        // the remaining count stays on the stack for the whole loop
+        compile(stmt.times);
+        emit(REPEAT_COUNT, 0);
+        chunk.emit(chunk.addToken(stmt.forToken));
+
+        loop = new Loop(loop);
+        int start = chunk.count;
+        int exitJump = emitJump(REPEAT_NEXT, 0);
+        emit(LOOP, 0);
+        chunk.emit(stmt.line);
+        compile(stmt.body);
+        emit(JUMP, 0);
+        chunk.emit(start);
+
+        patch(exitJump);
+        patchAll(loop.breaks);
+        emit(POP, -1);
+        patchAll(loop.continues, start);
+        loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        loop.breaks.add(emitJump(JUMP, 0));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        loop.continues.add(emitJump(JUMP, 0));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        if (expr.depth == Resolver.GLOBAL) {
+            emit(SET_GLOBAL, 0);
+            chunk.emit(expr.slot);
+            chunk.emit(chunk.addToken(expr.name));
+        } else {
+            emit(SET_LOCAL, 0);
+            chunk.emit(register(expr.depth, expr.slot));
+        }
+        return null;
+    }
+
+    // returns the operand to patch with where to go when the condition is false
+    private int compileCondition(Expr condition) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)condition;
+            int op = -1;
+            switch (binary.operator.type) {
+                case LESS: op = JUMP_IF_NOT_LESS; break;
+                case LESS_EQUAL: op = JUMP_IF_NOT_LESS_EQUAL; break;
+                case GREATER: op = JUMP_IF_NOT_GREATER; break;
+                case GREATER_EQUAL: op = JUMP_IF_NOT_GREATER_EQUAL; break;
+                default: // pass
+            }
+            if (op != -1) {
+                compile(binary.left);
+                compile(binary.right);
+                int jump = emitJump(op, -2);
+                chunk.emit(chunk.addToken(binary.operator));
+                return jump;
+            }
+        }
+        compile(condition);
+        return emitJump(JUMP_IF_FALSE, -1);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL: emit(EQUAL, -1); return null;
+            case BANG_EQUAL: emit(NOT_EQUAL, -1); return null;
+            case PLUS: emit(ADD, -1); break;
+            case MINUS: emit(SUBTRACT, -1); break;
+            case LESS: emit(LESS, -1); break;
+            case LESS_EQUAL: emit(LESS_EQUAL, -1); break;
+            case GREATER: emit(GREATER, -1); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL, -1); break;
+            default: emit(BINARY, -1);
+        }
+        chunk.emit(chunk.addToken(expr.operator));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL, 1);
+        } else if (expr.value instanceof Boolean) {
+            emit((boolean)expr.value ? TRUE : FALSE, 1);
+        } else {
+            emit(CONSTANT, 1);
+            chunk.emit(chunk.addConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.operator.type == TokenType.NOT) {
+            emit(NOT, 0);
+        } else {
+            emit(NEGATE, 0);
+            chunk.emit(chunk.addToken(expr.operator));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        int endJump = emitJump(
+            Interpreter.isOr(expr.operator) ? JUMP_IF_TRUE_KEEP : JUMP_IF_FALSE_KEEP, 0
+        );
+        emit(POP, -1);
+        compile(expr.right);
+        patch(endJump);
+        // nor and nand negate whichever side they settled on
+        if (Interpreter.isNegated(expr.operator)) emit(NOT, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitXorExpr(Expr.Xor expr) {
+        compile(expr.left);
+        compile(expr.right);
+        emit(XOR, -1);
+        chunk.emit(chunk.addToken(expr.operator));
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == Resolver.GLOBAL) {
+            emit(GET_GLOBAL, 1);
+            chunk.emit(expr.slot);
+            chunk.emit(chunk.addToken(expr.name));
+        } else {
+            emit(GET_LOCAL, 1);
+            chunk.emit(register(expr.depth, expr.slot));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitEvalExpr(Expr.Eval expr) {
+        compile(expr.string);
+        emit(EVAL, 0);
+        chunk.emit(chunk.addToken(expr.token));
+        chunk.emit(chunk.addConstant(new EvalSite(expr.locals, new ArrayList<>(frames))));
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private int register(int depth, int slot) {
+        return frames.get(frames.size()-1 - depth) + slot;
+    }
+
+    private int target(int depth, int slot) {
+        if (depth == Resolver.GLOBAL) return -1 - slot;
+        return register(depth, slot);
+    }
+
+    private void emit(int op, int effect) {
+        chunk.emit(op);
+        stack += effect;
+        chunk.maxStack = Math.max(chunk.maxStack, stack);
+    }
+
+    private int emitJump(int op, int effect) {
+        emit(op, effect);
+        chunk.emit(-1);
+        return chunk.count-1;
+    }
+
+    private void patch(int operand) {
+        chunk.code[operand] = chunk.count;
+    }
+
+    private void patchAll(List<Integer> operands) {
+        patchAll(operands, chunk.count);
+    }
+
+    private void patchAll(List<Integer> operands, int target) {
+        for (int operand : operands) {
+            chunk.code[operand] = target;
+        }
+    }
+}
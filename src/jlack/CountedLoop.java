@@ -0,0 +1,259 @@
+package jlack;
+
+// A while loop that steps one variable by a constant towards a limit that
+// doesn't move, the shape every `for let i = a; i < n; i = i+1;` turns into.
+// Nothing in the body can assign the variable or the limit, so the loop can
+// keep the variable in a double and only box it into its slot when the body
+// reads it.
+final class CountedLoop {
+    // the variable, seen from the Env the loop runs in
+    final int depth;
+    final int slot;
+    private final TokenType comparison;
+    final double step;
+    // a number, or null when the limit is the variable at limitDepth, limitSlot
+    private final Double constant;
+    private final int limitDepth;
+    private final int limitSlot;
+    // whether the body needs the variable in its slot
+    final boolean reads;
+
+    private CountedLoop(
+            Expr.Variable variable, TokenType comparison, Expr limit, double step, boolean reads) {
+        this.depth = variable.depth;
+        this.slot = variable.slot;
+        this.comparison = comparison;
+        this.step = step;
+        this.reads = reads;
+        if (limit instanceof Expr.Literal) {
+            this.constant = (Double)((Expr.Literal)limit).value;
+            this.limitDepth = 0;
+            this.limitSlot = 0;
+        } else {
+            this.constant = null;
+            this.limitDepth = ((Expr.Variable)limit).depth;
+            this.limitSlot = ((Expr.Variable)limit).slot;
+        }
+    }
+
+    // the counted form of a resolved loop, null if it isn't one
+    static CountedLoop match(Stmt.While loop) {
+        if (!(loop.condition instanceof Expr.Binary) || !(loop.increment instanceof Expr.Assign)) return null;
+
+        Expr.Binary condition = (Expr.Binary)loop.condition;
+        switch (condition.operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        if (!(condition.left instanceof Expr.Variable)) return null;
+        Expr.Variable variable = (Expr.Variable)condition.left;
+        Expr limit = condition.right;
+        boolean isConstant = limit instanceof Expr.Literal && ((Expr.Literal)limit).value instanceof Double;
+        if (!isConstant && !(limit instanceof Expr.Variable)) return null;
+        if (!isConstant && isSame((Expr.Variable)limit, variable.depth, variable.slot, 0)) return null;
+
+        // i = i + step or i = i - step
+        Expr.Assign increment = (Expr.Assign)loop.increment;
+        if (increment.depth != variable.depth || increment.slot != variable.slot) return null;
+        if (!(increment.value instanceof Expr.Binary)) return null;
+        Expr.Binary next = (Expr.Binary)increment.value;
+        TokenType operator = next.operator.type;
+        if (operator != TokenType.PLUS && operator != TokenType.MINUS) return null;
+        if (!(next.left instanceof Expr.Variable) || !isSame((Expr.Variable)next.left, variable.depth, variable.slot, 0)) {
+            return null;
+        }
+        if (!(next.right instanceof Expr.Literal) || !(((Expr.Literal)next.right).value instanceof Double)) return null;
+        double step = (double)((Expr.Literal)next.right).value;
+
+        Uses uses = new Uses(variable, isConstant ? null : (Expr.Variable)limit);
+        loop.body.accept(uses);
+        if (uses.writes) return null;
+        // subtracting is adding the negation, rounding included
+        return new CountedLoop(variable, condition.operator.type, limit, operator == TokenType.MINUS ? -step : step, uses.reads);
+    }
+
+    // the variable's frame in the Env the loop is about to run in
+    Object[] frame(Interpreter interpreter) {
+        if (depth == Resolver.GLOBAL) return interpreter.globals.values;
+        return interpreter.env.ancestor(depth).values;
+    }
+
+    Object limit(Interpreter interpreter) {
+        if (constant != null) return constant;
+        if (limitDepth == Resolver.GLOBAL) return interpreter.globals.values[limitSlot];
+        return interpreter.env.get(limitDepth, limitSlot);
+    }
+
+    boolean test(double value, double limit) {
+        switch (comparison) {
+            case LESS: return value < limit;
+            case LESS_EQUAL: return value <= limit;
+            case GREATER: return value > limit;
+            default: return value >= limit;
+        }
+    }
+
+    // whether a reference nesting blocks below the loop is to depth and slot
+    private static boolean isSame(Expr.Variable variable, int depth, int slot, int nesting) {
+        return isSame(variable.depth, variable.slot, depth, slot, nesting);
+    }
+
+    private static boolean isSame(int refDepth, int refSlot, int depth, int slot, int nesting) {
+        if (refSlot != slot) return false;
+        if (depth == Resolver.GLOBAL) return refDepth == Resolver.GLOBAL;
+        return refDepth == depth + nesting;
+    }
+
+    // finds whether the body reads the variable and whether anything in it
+    // could assign the variable or the limit
+    private static final class Uses implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+        private final Expr.Variable variable;
+        private final Expr.Variable limit;
+        private int nesting = 0;
+        boolean reads = false;
+        boolean writes = false;
+
+        Uses(Expr.Variable variable, Expr.Variable limit) {
+            this.variable = variable;
+            this.limit = limit;
+        }
+
+        private void write(int depth, int slot) {
+            if (isSame(depth, slot, variable.depth, variable.slot, nesting)) writes = true;
+            if (limit != null && isSame(depth, slot, limit.depth, limit.slot, nesting)) writes = true;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            // a block without slots has no Env of its own
+            if (stmt.slots > 0) nesting++;
+            for (Stmt statement : stmt.statements) statement.accept(this);
+            if (stmt.slots > 0) nesting--;
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            return stmt.expression.accept(this);
+        }
+
+        @Override
+        public Void visitWriteStmt(Stmt.Write stmt) {
+            return stmt.expression.accept(this);
+        }
+
+        @Override
+        public Void visitReadStmt(Stmt.Read stmt) {
+            write(stmt.depth, stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitReadNumStmt(Stmt.ReadNum stmt) {
+            write(stmt.depth, stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitLetStmt(Stmt.Let stmt) {
+            if (stmt.initialiser != null) stmt.initialiser.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            if (stmt.condition != null) stmt.condition.accept(this);
+            stmt.body.accept(this);
+            if (stmt.increment != null) stmt.increment.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+            stmt.body.accept(this);
+            return stmt.condition.accept(this);
+        }
+
+        @Override
+        public Void visitRepeatForStmt(Stmt.RepeatFor stmt) {
+            stmt.times.accept(this);
+            return stmt.body.accept(this);
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitContinueStmt(Stmt.Continue stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            write(expr.depth, expr.slot);
+            return expr.value.accept(this);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitXorExpr(Expr.Xor expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (isSame(expr, variable.depth, variable.slot, nesting)) reads = true;
+            return null;
+        }
+
+        @Override
+        public Void visitEvalExpr(Expr.Eval expr) {
+            // eval'd code can read and assign anything in scope
+            reads = true;
+            writes = true;
+            return expr.string.accept(this);
+        }
+    }
+}
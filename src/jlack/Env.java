@@ -1,47 +1,57 @@
 package jlack;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Env {
+    // what a global holds until its let has run, which it never does when
+    // a shell line fails before it
+    static final Object UNDEFINED = new Object();
+
     final Env enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    Object[] values;
 
     Env() {
-        this.enclosing = null;
+        this(null, 0);
     }
 
-    Env(Env enclosing) {
+    Env(Env enclosing, int size) {
         this.enclosing = enclosing;
+        this.values = new Object[size];
     }
 
-    void define(String name, Object val) {
-        values.put(name, val);
+    // only the globals grow, the shell keeps declaring new ones between runs
+    void reserve(int size) {
+        if (values.length < size) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(size, length * 2));
+            Arrays.fill(values, length, values.length, UNDEFINED);
+        }
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) return values.get(name.lexeme);
-
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name,
+    // reading or assigning a global that is still UNDEFINED
+    static RuntimeError undefined(Token name) {
+        return new RuntimeError(name,
             String.format("Undefined variable '%s'", name.lexeme)
         );
     }
 
-    void assign(Token name, Object val) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, val);
-            return;
-        }
+    void define(int slot, Object val) {
+        values[slot] = val;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, val);
-            return;
-        }
+    Object get(int depth, int slot) {
+        return ancestor(depth).values[slot];
+    }
 
-        throw new RuntimeError(name,
-            String.format("Undefined variable '%s'", name.lexeme)
-        );
+    void assign(int depth, int slot, Object val) {
+        ancestor(depth).values[slot] = val;
+    }
+
+    Env ancestor(int depth) {
+        Env env = this;
+        for (int i = 0; i < depth; i++) {
+            env = env.enclosing;
+        }
+        return env;
     }
 }
@@ -0,0 +1,69 @@
+package jlack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// What eval compiled each string to, per site, so evaluating the same string
+// again is a lookup. The least recently used entry goes once it is full.
+final class EvalCache {
+    static final int CAPACITY = 256;
+
+    private static final class Key {
+        final Object site;
+        final String source;
+
+        Key(Object site, String source) {
+            this.site = site;
+            this.source = source;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key)other;
+            return site == key.site && source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(site) * 31 + source.hashCode();
+        }
+    }
+
+    private final Map<Key, Object> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    EvalCache(int capacity) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // the tree or chunk compiled for source at site, null on a miss
+    Object get(Object site, String source) {
+        Object compiled = entries.get(new Key(site, source));
+        if (compiled == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return compiled;
+    }
+
+    void put(Object site, String source, Object compiled) {
+        entries.put(new Key(site, source), compiled);
+    }
+
+    // read by the jlack.Counters JFR event
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+}
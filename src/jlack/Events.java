@@ -0,0 +1,142 @@
+package jlack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+// JDK Flight Recorder events for the phases of running a script, so they
+// line up with GC and CPU samples in a recording.
+//
+// Loading an event class starts much of JFR, which would double jlack's
+// start-up, so callers only create events once isRecording() says a
+// recorder exists, from -XX:StartFlightRecording or jcmd JFR.start. After
+// that an event type the recording leaves out costs a shouldCommit().
+final class Events {
+    private Events() {}
+
+    @Name("jlack.Lex")
+    @Label("Lex")
+    @Category("jlack")
+    @Description("Lexing a script's source into tokens")
+    static final class Lex extends Event {
+        @Label("Source Length")
+        @Description("Characters in the source")
+        int length;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("jlack.Parse")
+    @Label("Parse")
+    @Category("jlack")
+    @Description("Parsing a script's tokens into statements")
+    static final class Parse extends Event {
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Statements")
+        @Description("Top-level statements parsed")
+        int statements;
+    }
+
+    @Name("jlack.Execute")
+    @Label("Execute")
+    @Category("jlack")
+    @Description("Resolving, optimising and running parsed statements")
+    static final class Execute extends Event {
+        @Label("Statements")
+        @Description("Top-level statements run")
+        int statements;
+
+        @Label("Backend")
+        String backend;
+    }
+
+    @Name("jlack.RuntimeError")
+    @Label("Runtime Error")
+    @Category("jlack")
+    static final class RuntimeError extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("jlack.Counters")
+    @Label("Counters")
+    @Category("jlack")
+    @Description("Work done so far by every live interpreter")
+    @Period("1 s")
+    static final class Counters extends Event {
+        @Label("Interpreters")
+        int interpreters;
+
+        @Label("Statements Run")
+        @Description("Statements run by the tree-walker")
+        long statements;
+
+        @Label("Envs Allocated")
+        @Description("Block frames allocated by the tree-walker and nodes")
+        long envs;
+
+        @Label("Eval Cache Hits")
+        @Description("Evals that reused what their string compiled to")
+        long evalHits;
+
+        @Label("Eval Cache Misses")
+        @Description("Evals that had to compile their string")
+        long evalMisses;
+    }
+
+    // the interpreters the counters add up, weak so a finished one goes
+    private static final Map<Interpreter, Boolean> interpreters =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static boolean periodic = false;
+
+    // The counters are registered the first time a phase sees the recorder,
+    // so a recording started while a long script is already running only
+    // gets them from the next script on.
+    static boolean isRecording() {
+        if (!FlightRecorder.isInitialized()) return false;
+        synchronized (Events.class) {
+            if (!periodic) FlightRecorder.addPeriodicEvent(Counters.class, Events::emitCounters);
+            periodic = true;
+        }
+        return true;
+    }
+
+    static void track(Interpreter interpreter) {
+        interpreters.put(interpreter, Boolean.TRUE);
+    }
+
+    // Runs on the recorder's thread while the scripts keep going, so the
+    // counts are read without synchronising and may be a little behind.
+    private static void emitCounters() {
+        List<Interpreter> live;
+        synchronized (interpreters) {
+            live = new ArrayList<>(interpreters.keySet());
+        }
+        Counters event = new Counters();
+        event.interpreters = live.size();
+        for (Interpreter interpreter : live) {
+            event.statements += interpreter.statementsRun;
+            event.envs += interpreter.envsAllocated;
+            event.evalHits += interpreter.evals.hits();
+            event.evalMisses += interpreter.evals.misses();
+        }
+        event.commit();
+    }
+}
@@ -1,4 +1,4 @@
-//tool/GenerateAst.java
+//tool/GenerateAst.java
 package jlack;
 
 import java.util.List;
@@ -11,6 +11,7 @@ abstract class Expr {
         R visitLiteralExpr(Literal expr);
         R visitUnaryExpr(Unary expr);
         R visitLogicalExpr(Logical expr);
+        R visitXorExpr(Xor expr);
         R visitVariableExpr(Variable expr);
         R visitEvalExpr(Eval expr);
     }
@@ -27,6 +28,8 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int depth;
+        int slot;
     }
     static class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
@@ -98,6 +101,22 @@ abstract class Expr {
         final Token operator;
         final Expr right;
     }
+    static class Xor extends Expr {
+        Xor(Expr left, Token operator, Expr right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitXorExpr(this);
+    }
+
+        final Expr left;
+        final Token operator;
+        final Expr right;
+    }
     static class Variable extends Expr {
         Variable(Token name) {
             this.name = name;
@@ -109,6 +128,8 @@ abstract class Expr {
     }
 
         final Token name;
+        int depth;
+        int slot;
     }
     static class Eval extends Expr {
         Eval(Expr string, Token token) {
@@ -123,6 +144,7 @@ abstract class Expr {
 
         final Expr string;
         final Token token;
+        Resolver.Locals locals;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
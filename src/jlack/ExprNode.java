@@ -0,0 +1,570 @@
+package jlack;
+
+abstract class ExprNode extends Node {
+    abstract Object execute(Interpreter interpreter);
+
+    static class Literal extends ExprNode {
+        private final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            return value;
+        }
+    }
+
+    static class Local extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        Local(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            return interpreter.env.get(depth, slot);
+        }
+    }
+
+    static class Global extends ExprNode {
+        private final Token name;
+        private final int slot;
+
+        Global(Token name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object val = interpreter.globals.values[slot];
+            if (val == Env.UNDEFINED) throw Env.undefined(name);
+            return val;
+        }
+    }
+
+    static class AssignLocal extends ExprNode {
+        private ExprNode value;
+        private final int depth;
+        private final int slot;
+
+        AssignLocal(ExprNode value, int depth, int slot) {
+            this.value = adopt(value);
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object val = value.execute(interpreter);
+            interpreter.env.assign(depth, slot, val);
+            return val;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (value == old) value = (ExprNode)replacement;
+        }
+    }
+
+    static class AssignGlobal extends ExprNode {
+        private final Token name;
+        private ExprNode value;
+        private final int slot;
+
+        AssignGlobal(Token name, ExprNode value, int slot) {
+            this.name = name;
+            this.value = adopt(value);
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object val = value.execute(interpreter);
+            Object[] globals = interpreter.globals.values;
+            if (globals[slot] == Env.UNDEFINED) throw Env.undefined(name);
+            globals[slot] = val;
+            return val;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (value == old) value = (ExprNode)replacement;
+        }
+    }
+
+    static class Eval extends ExprNode {
+        private ExprNode string;
+        private final Resolver.Locals locals;
+        private final Token token;
+
+        Eval(ExprNode string, Resolver.Locals locals, Token token) {
+            this.string = adopt(string);
+            this.locals = locals;
+            this.token = token;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            // the nodes keep interpreter.env up to date, so the tree-walker can run it
+            return interpreter.eval(locals, token, string.execute(interpreter));
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (string == old) string = (ExprNode)replacement;
+        }
+    }
+
+    // -- unary --------------------------------------------------------------
+
+    abstract static class Unary extends ExprNode {
+        ExprNode right;
+        final Token operator;
+
+        Unary(Token operator, ExprNode right) {
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (right == old) right = (ExprNode)replacement;
+        }
+
+        Object generalise(Object operand) {
+            return replace(new GenericUnary(operator, right)).apply(operand);
+        }
+    }
+
+    static class UninitialisedUnary extends Unary {
+        UninitialisedUnary(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object operand = right.execute(interpreter);
+            if (operator.type == TokenType.MINUS && operand instanceof Double) {
+                return replace(new NumberNegate(operator, right)).apply((double)operand);
+            }
+            if (operator.type == TokenType.NOT) {
+                return replace(new Not(operator, right)).apply(operand);
+            }
+            return generalise(operand);
+        }
+    }
+
+    static class NumberNegate extends Unary {
+        NumberNegate(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object operand = right.execute(interpreter);
+            if (operand instanceof Double) return apply((double)operand);
+            return generalise(operand);
+        }
+
+        Object apply(double operand) {
+            return -operand;
+        }
+    }
+
+    static class Not extends Unary {
+        Not(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            return apply(right.execute(interpreter));
+        }
+
+        Object apply(Object operand) {
+            return !Interpreter.isTruthy(operand);
+        }
+    }
+
+    static class GenericUnary extends Unary {
+        GenericUnary(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            return apply(right.execute(interpreter));
+        }
+
+        Object apply(Object operand) {
+            return Interpreter.unary(operator, operand);
+        }
+    }
+
+    // -- binary -------------------------------------------------------------
+
+    abstract static class Binary extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+        final Token operator;
+
+        Binary(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (left == old) left = (ExprNode)replacement;
+            if (right == old) right = (ExprNode)replacement;
+        }
+
+        // the operand types changed under a specialised node, stop guessing
+        Object generalise(Object l, Object r) {
+            return replace(new GenericBinary(left, operator, right)).apply(l, r);
+        }
+    }
+
+    static class UninitialisedBinary extends Binary {
+        UninitialisedBinary(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            Binary specialised = specialise(l, r);
+            if (specialised == null) return generalise(l, r);
+            replace(specialised);
+            return Interpreter.binary(operator, l, r);
+        }
+
+        private Binary specialise(Object l, Object r) {
+            if (l instanceof Double && r instanceof Double) {
+                switch (operator.type) {
+                    case PLUS: return new NumberAdd(left, operator, right);
+                    case MINUS: return new NumberSubtract(left, operator, right);
+                    case STAR: return new NumberMultiply(left, operator, right);
+                    case SLASH: return new NumberDivide(left, operator, right);
+                    case MODULO: return new NumberModulo(left, operator, right);
+                    case LESS: return new NumberLess(left, operator, right);
+                    case LESS_EQUAL: return new NumberLessEqual(left, operator, right);
+                    case GREATER: return new NumberGreater(left, operator, right);
+                    case GREATER_EQUAL: return new NumberGreaterEqual(left, operator, right);
+                    default: return null;
+                }
+            }
+            if (operator.type == TokenType.PLUS && l instanceof CharSequence && r instanceof CharSequence) {
+                return new StringConcat(left, operator, right);
+            }
+            if (operator.type == TokenType.STAR) {
+                if (l instanceof CharSequence && r instanceof Double) return new StringRepeat(left, operator, right);
+                if (l instanceof Double && r instanceof CharSequence) return new RepeatString(left, operator, right);
+            }
+            return null;
+        }
+    }
+
+    static class GenericBinary extends Binary {
+        GenericBinary(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            return apply(left.execute(interpreter), right.execute(interpreter));
+        }
+
+        Object apply(Object l, Object r) {
+            return Interpreter.binary(operator, l, r);
+        }
+    }
+
+    static class NumberAdd extends Binary {
+        NumberAdd(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) return (double)l + (double)r;
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberSubtract extends Binary {
+        NumberSubtract(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) return (double)l - (double)r;
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberMultiply extends Binary {
+        NumberMultiply(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) return (double)l * (double)r;
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberDivide extends Binary {
+        NumberDivide(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) {
+                if ((double)r == 0) throw new RuntimeError(operator, "Division by zero");
+                return (double)l / (double)r;
+            }
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberModulo extends Binary {
+        NumberModulo(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) {
+                if ((double)r == 0) throw new RuntimeError(operator, "Modulo by zero");
+                return (double)l % (double)r;
+            }
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberLess extends Binary {
+        NumberLess(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) return (double)l < (double)r;
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberLessEqual extends Binary {
+        NumberLessEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) return (double)l <= (double)r;
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberGreater extends Binary {
+        NumberGreater(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) return (double)l > (double)r;
+            return generalise(l, r);
+        }
+    }
+
+    static class NumberGreaterEqual extends Binary {
+        NumberGreaterEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof Double) return (double)l >= (double)r;
+            return generalise(l, r);
+        }
+    }
+
+    static class StringConcat extends Binary {
+        StringConcat(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof CharSequence && r instanceof CharSequence) {
+                return Rope.concat((CharSequence)l, (CharSequence)r);
+            }
+            return generalise(l, r);
+        }
+    }
+
+    // string * int
+    static class StringRepeat extends Binary {
+        StringRepeat(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof CharSequence && r instanceof Double && (double)r % 1 == 0) {
+                return Rope.repeat((CharSequence)l, (int)(double)r);
+            }
+            return generalise(l, r);
+        }
+    }
+
+    // int * string
+    static class RepeatString extends Binary {
+        RepeatString(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            Object r = right.execute(interpreter);
+            if (l instanceof Double && r instanceof CharSequence && (double)l % 1 == 0) {
+                return Rope.repeat((CharSequence)r, (int)(double)l);
+            }
+            return generalise(l, r);
+        }
+    }
+
+    // -- logical ------------------------------------------------------------
+
+    abstract static class Logical extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+        final Token operator;
+
+        Logical(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (left == old) left = (ExprNode)replacement;
+            if (right == old) right = (ExprNode)replacement;
+        }
+
+        // same short-circuit rules as the tree-walker, for any left operand
+        Object generic(Interpreter interpreter, Object l) {
+            Object result = Interpreter.isTruthy(l) == Interpreter.isOr(operator) ? l : right.execute(interpreter);
+            return Interpreter.isNegated(operator) ? !Interpreter.isTruthy(result) : result;
+        }
+    }
+
+    static class UninitialisedLogical extends Logical {
+        UninitialisedLogical(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            if (l instanceof Boolean) {
+                return replace(new BooleanLogical(left, operator, right)).generic(interpreter, l);
+            }
+            return replace(new GenericLogical(left, operator, right)).generic(interpreter, l);
+        }
+    }
+
+    // the left operand has only been seen as a boolean so far
+    static class BooleanLogical extends Logical {
+        private final boolean isOr;
+        private final boolean isNegated;
+
+        BooleanLogical(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+            this.isOr = Interpreter.isOr(operator);
+            this.isNegated = Interpreter.isNegated(operator);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            Object l = left.execute(interpreter);
+            if (!(l instanceof Boolean)) {
+                return replace(new GenericLogical(left, operator, right)).generic(interpreter, l);
+            }
+            Object result = (boolean)l == isOr ? l : right.execute(interpreter);
+            return isNegated ? !Interpreter.isTruthy(result) : result;
+        }
+    }
+
+    static class GenericLogical extends Logical {
+        GenericLogical(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            return generic(interpreter, left.execute(interpreter));
+        }
+    }
+
+    // xor and xnor always evaluate both sides
+    static class Xor extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+        private final Token operator;
+
+        Xor(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter) {
+            return Interpreter.xor(operator, left.execute(interpreter), right.execute(interpreter));
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (left == old) left = (ExprNode)replacement;
+            if (right == old) right = (ExprNode)replacement;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package jlack;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// What read and readnum take from stdin, a line at a time. Lines are found
+// in one large buffer, filled from stdin or copied in bulk from memory
+// mapped straight from it when it is a file, and readnum parses its line
+// where it lies, so only read builds a String. Lines end at \n, \r or
+// \r\n like BufferedReader.readLine.
+//
+// A charset that doesn't agree with ASCII can't be split into lines byte
+// by byte, so it goes through a BufferedReader instead.
+final class Input {
+    private static final int SIZE = 65536;
+
+    private final ReadableByteChannel channel;
+    private final Charset charset;
+    private final BufferedReader reader;
+    // whether channel is stdin and may be mapped on the first read
+    private boolean mayMap;
+    // the rest of stdin when it is mapped
+    private ByteBuffer mapped = null;
+    private byte[] bytes = null;
+    // bytes as the channel reads into it
+    private ByteBuffer buffer = null;
+    // unread bytes are bytes[position, limit)
+    private int position = 0;
+    private int limit = 0;
+    private boolean isEnd = false;
+    // the last line ended at \r, so a \n starting the next one belongs to it
+    private boolean skipLF = false;
+    private final Line line = new Line();
+
+    Input(ReadableByteChannel channel, Charset charset) {
+        this(channel, charset, false);
+    }
+
+    private Input(ReadableByteChannel channel, Charset charset, boolean mayMap) {
+        this.channel = channel;
+        this.charset = charset;
+        this.mayMap = mayMap;
+        // every charset we could be running with agrees with ASCII below 0x80
+        boolean isAscii = charset.equals(StandardCharsets.UTF_8)
+            || charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1);
+        this.reader = isAscii ? null : new BufferedReader(Channels.newReader(channel, charset));
+    }
+
+    static Input stdin() {
+        return new Input(new FileInputStream(FileDescriptor.in).getChannel(), Charset.defaultCharset(), true);
+    }
+
+    // the next line, null at the end of the input
+    String readLine() throws IOException {
+        if (reader != null) return reader.readLine();
+        return nextLine() ? line.toString() : null;
+    }
+
+    // the next line as a number, null at the end of the input or if it
+    // isn't one, the same numbers Double.parseDouble takes
+    Double readNumber() throws IOException {
+        if (reader != null) {
+            String text = reader.readLine();
+            return text == null ? null : NumberCodec.parseInput(text, 0, text.length());
+        }
+        return nextLine() ? NumberCodec.parseInput(line, 0, line.length()) : null;
+    }
+
+    // points line at the next line, false at the end of the input
+    private boolean nextLine() throws IOException {
+        if (skipLF) {
+            skipLF = false;
+            if (position == limit) fill();
+            if (position < limit && bytes[position] == '\n') position++;
+        }
+
+        int scanned = 0;
+        for (;;) {
+            for (int i = position + scanned; i < limit; i++) {
+                byte b = bytes[i];
+                if (b == '\n' || b == '\r') {
+                    line.set(position, i);
+                    position = i + 1;
+                    skipLF = b == '\r';
+                    return true;
+                }
+            }
+            scanned = limit - position;
+            if (!fill()) break;
+        }
+        // the last line doesn't need to end
+        if (position == limit) return false;
+        line.set(position, limit);
+        position = limit;
+        return true;
+    }
+
+    // reads more after what is left unread, false at the end of the input
+    private boolean fill() throws IOException {
+        if (isEnd) return false;
+        if (bytes == null) {
+            if (mayMap) map();
+            bytes = new byte[SIZE];
+            buffer = ByteBuffer.wrap(bytes);
+        }
+
+        // keep the unread part, at the start of a bigger buffer if it's full
+        int unread = limit - position;
+        if (unread == bytes.length) {
+            bytes = Arrays.copyOf(bytes, unread * 2);
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        System.arraycopy(bytes, position, bytes, 0, unread);
+        position = 0;
+        limit = unread;
+
+        int n;
+        if (mapped != null) {
+            n = Math.min(mapped.remaining(), bytes.length - limit);
+            mapped.get(bytes, limit, n);
+            if (n == 0) n = -1;
+        } else {
+            do {
+                buffer.limit(bytes.length).position(limit);
+                n = channel.read(buffer);
+            } while (n == 0);
+        }
+        if (n < 0) {
+            isEnd = true;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    // Maps the rest of stdin if it is a file, which saves a read call per
+    // buffer. A pipe or terminal has no size to map.
+    private void map() {
+        mayMap = false;
+        if (!(channel instanceof FileChannel)) return;
+        FileChannel file = (FileChannel)channel;
+        try {
+            long start = file.position();
+            long size = file.size() - start;
+            if (size <= 0 || size > Integer.MAX_VALUE) return;
+            mapped = file.map(FileChannel.MapMode.READ_ONLY, start, size);
+            file.position(start + size);
+        } catch (IOException error) {
+            // read it instead
+        }
+    }
+
+    // the current line, seen one char per byte like MappedSource, which is
+    // all parsing a number needs
+    private final class Line implements CharSequence {
+        private int start;
+        private int end;
+
+        void set(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char)(bytes[start + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, end - start, charset);
+        }
+    }
+}
@@ -1,29 +1,59 @@
 package jlack;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static jlack.StmtNode.BREAK;
+import static jlack.StmtNode.CONTINUE;
+import static jlack.StmtNode.NORMAL;
+
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Integer> {
+    final Env globals = new Env();
+    // names are interned per interpreter, so the globals line up across runs
+    final SymbolTable symbols = new SymbolTable();
+    final Map<Symbol, Integer> globalSlots = new HashMap<>();
+    Env env = globals;
+    final Output output;
+    private final Input input;
+
+    boolean jit = true;
+    // hot loops, null once a loop turned out not to be compilable. Stmt has
+    // identity equality and the keys are weak, so a loop's code goes with it
+    private final Map<Stmt, CompiledLoop> compiledLoops = new WeakHashMap<>();
+    // what eval'd strings compiled to, for this interpreter and its VM
+    final EvalCache evals = new EvalCache(EvalCache.CAPACITY);
+    // times every statement for --profile, null to just run them
+    Profiler profiler = null;
+    // work done so far, read by the jlack.Counters JFR event
+    long statementsRun = 0;
+    long envsAllocated = 0;
+    // what the script may still run, null for no limit
+    Budget budget = null;
+
+    Interpreter() {
+        this(Input.stdin(), new Output());
+    }
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    Env env = new Env();
-    InputStreamReader input = new InputStreamReader(System.in);
-    BufferedReader reader = new BufferedReader(input);
-
-    private boolean isInLoop = false;
-    private boolean breakSignal = false;
-    private boolean continueSignal = false;
+    Interpreter(Input input, Output output) {
+        this.input = input;
+        this.output = output;
+    }
 
     void interpret(List<Stmt> statements) {
-        try {
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
-        } catch (RuntimeError error) {
-            Lack.runtimeError(error);
+        globals.reserve(globalSlots.size());
+        for (Stmt statement : statements) {
+            execute(statement);
         }
     }
 
+    void interpret(StmtNode program) {
+        globals.reserve(globalSlots.size());
+        program.execute(this);
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -31,15 +61,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
-            case NOT:
-                return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
-        }
-        return null;
+        return unary(expr.operator, evaluate(expr.right));
     }
 
     @Override
@@ -49,391 +71,416 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
-        switch (expr.operator.type) {
-            case BANG_EQUAL: return !isEqual(left, right);
-            case EQUAL_EQUAL: return isEqual(left, right);
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
-                }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
-            case STAR:
-                String string = null;
-                Double number = 0.0;
-                if (left instanceof String) {
-                    if (right instanceof Double) {
-                        string = (String) left;
-                        number = (Double) right;
-                        if (number % 1 != 0) throw new RuntimeError(expr.operator, "String can only be multiplied by int");
-                    } else {
-                        throw new RuntimeError(expr.operator, "String can only be multiplied by int");
-                    }
-                } else if (right instanceof String) {
-                    if (left instanceof Double) {
-                        string = (String) right;
-                        number = (Double) left;
-                        if (number % 1 != 0) throw new RuntimeError(expr.operator, "String can only be multiplied by int");
-                    } else {
-                        throw new RuntimeError(expr.operator, "String can only be multiplied by int");
-                    }
-                }
-                if (string != null) {
-                    double d = (double) number;
-                    int i = (int) d;
-                    return string.repeat(i);
-                }
-
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                if ((double) right == 0) {
-                    throw new RuntimeError(expr.operator, "Division by zero");
-                }
-                return (double)left / (double)right;
-            case MODULO:
-                checkNumberOperands(expr.operator, left, right);
-                if ((double) right == 0) {
-                    throw new RuntimeError(expr.operator, "Modulo by zero");
-                }
-                return (double)left % (double)right;
-        }
-        return null;
+        return binary(expr.operator, evaluate(expr.left), evaluate(expr.right));
     }
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left = evaluate(expr.left);
-        if (expr.operator.type == TokenType.OR) {
-            if (isTruthy(left)) return left;
-        } else {
-            if (!isTruthy(left)) return left;
-        }
-        return (evaluate(expr.right));
+        Object result = isTruthy(left) == isOr(expr.operator) ? left : evaluate(expr.right);
+        return isNegated(expr.operator) ? !isTruthy(result) : result;
+    }
+
+    @Override
+    public Object visitXorExpr(Expr.Xor expr) {
+        return xor(expr.operator, evaluate(expr.left), evaluate(expr.right));
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return env.get(expr.name);
+        return lookUp(expr.name, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object val = evaluate(expr.value);
-        env.assign(expr.name, val);
+        assign(expr.name, expr.depth, expr.slot, val);
         return val;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitWriteStmt(Stmt.Write stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.print(stringify(value) + stmt.end);
-        return null;
+    public Integer visitWriteStmt(Stmt.Write stmt) {
+        write(evaluate(stmt.expression), stmt.end);
+        return NORMAL;
     }
 
     @Override
-    public Void visitReadStmt(Stmt.Read stmt) {
+    public Integer visitReadStmt(Stmt.Read stmt) {
         Object val = getUserInput(false, stmt.token);
-        env.assign(stmt.name, val);
-        return null;
+        assign(stmt.name, stmt.depth, stmt.slot, val);
+        return NORMAL;
     }
 
     @Override
-    public Void visitReadNumStmt(Stmt.ReadNum stmt) {
+    public Integer visitReadNumStmt(Stmt.ReadNum stmt) {
         Object val = getUserInput(true, stmt.token);
-        env.assign(stmt.name, val);
-        return null;
+        assign(stmt.name, stmt.depth, stmt.slot, val);
+        return NORMAL;
     }
 
     @Override
     public Object visitEvalExpr(Expr.Eval expr) {
-        Object value = evaluate(expr.string);
-        // Lexer lexer = new Lexer(value);
-        // List<Token> tokens = lexer.lexTokens();
-        // // for (Token token : tokens) System.out.println(token);
-
-        // Parser parser = new Parser(tokens);
-        // List<Stmt> statements = parser.parse();
+        return eval(expr.locals, expr.token, evaluate(expr.string));
+    }
 
-        // if (hadError) return;
-        // // System.out.println(new AstPrinter().print(expression));
-        // final Interpreter interpreter = new Interpreter();
-        // interpreter.evaluate(statements);
+    // evaluates source in the current env, which is the one locals describe
+    Object eval(Resolver.Locals locals, Token token, Object source) {
+        String text = evalSource(token, source);
+        Expr expr = (Expr)evals.get(locals, text);
+        if (expr == null) {
+            expr = Lack.compileEval(this, locals, token, text);
+            evals.put(locals, text, expr);
+        }
+        return evaluate(expr);
+    }
 
-        return null;
+    static String evalSource(Token token, Object source) {
+        if (source instanceof CharSequence) return source.toString();
+        throw new RuntimeError(token, "Operand must be a string");
     }
 
     @Override
-    public Void visitLetStmt(Stmt.Let stmt) {
+    public Integer visitLetStmt(Stmt.Let stmt) {
         Object val = null;
         if (stmt.initialiser != null) {
             val = evaluate(stmt.initialiser);
         }
-        env.define(stmt.name.lexeme, val);
-        return null;
+        env.define(stmt.slot, val);
+        return NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Env(env));
-        return null;
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots == 0) return executeBlock(stmt.statements, env);
+        envsAllocated++;
+        return executeBlock(stmt.statements, new Env(env, stmt.slots));
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Integer visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        isInLoop = true;
-        while (isTruthy(evaluate(stmt.condition))) {
-            isInLoop = true;
-            if (breakSignal) {
-                breakSignal = false;
-                continueSignal = false;
-                break;
-            }
-
-            execute(stmt.body);
-            isInLoop = true;
-            if (breakSignal) {
-                breakSignal = false;
-                continueSignal = false;
-                break;
-            }
-            breakSignal = false;
-
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        if (stmt.counted != null && runCounted(stmt)) return NORMAL;
+        Env frame = frame(stmt.body);
+        int iterations = 0;
+        while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+            if (budget != null) budget.pass(stmt.line);
+            if (profiler != null) profiler.pass();
+            if (execute(stmt.body, frame) == BREAK) break;
             if (stmt.increment != null) evaluate(stmt.increment);
-            if (continueSignal) {
-                continueSignal = false;
-                continue;
-            }
+            if (++iterations == LoopCompiler.THRESHOLD && runCompiled(stmt, 0)) break;
         }
-        breakSignal = false;
-        continueSignal = false;
-        isInLoop = false;
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
-        isInLoop = true;
-        for (;;) {
-            isInLoop = true;
-            if (breakSignal) {
-                breakSignal = false;
-                continueSignal = false;
-                break;
-            }
-            execute(stmt.body);
-            isInLoop = true;
-            if (breakSignal) {
-                breakSignal = false;
-                continueSignal = false;
-                break;
-            }
-            breakSignal = false;
-
-            if (isTruthy(evaluate(stmt.condition))) break;
-
-            if (continueSignal) {
-                continueSignal = false;
-                continue;
-            }
-        }
-        isInLoop = false;
-        return null;
+    public Integer visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+        Env frame = frame(stmt.body);
+        do {
+            if (budget != null) budget.pass(stmt.line);
+            if (profiler != null) profiler.pass();
+            if (execute(stmt.body, frame) == BREAK) break;
+        } while (!isTruthy(evaluate(stmt.condition)));
+        return NORMAL;
     }
 
     @Override
-    public Void visitRepeatForStmt(Stmt.RepeatFor stmt) {
+    public Integer visitRepeatForStmt(Stmt.RepeatFor stmt) {
         Object times = evaluate(stmt.times);
-        Double n = 0.0;
-        if (!(times instanceof Double)) {
-            throw new RuntimeError(stmt.forToken, "Expected integer after 'for'");
-        }
-        n = (Double) times;
-        if (n % 1 != 0) {
+        if (!(times instanceof Double) || (double)times % 1 != 0) {
             throw new RuntimeError(stmt.forToken, "Expected integer after 'for'");
         }
-        isInLoop = true;
-        for (int i=0; i < n; i++) {
-            isInLoop = true;
-            if (breakSignal) {
-                breakSignal = false;
-                continueSignal = false;
-                break;
-            }
-            execute(stmt.body);
-            isInLoop = true;
-            if (breakSignal) {
-                breakSignal = false;
-                continueSignal = false;
-                break;
-            }
-            breakSignal = false;
-
-            if (continueSignal) {
-                continueSignal = false;
-                continue;
-            }
+        double n = (double)times;
+        Env frame = frame(stmt.body);
+        for (int i = 0; i < n; i++) {
+            if (budget != null) budget.pass(stmt.line);
+            if (profiler != null) profiler.pass();
+            if (execute(stmt.body, frame) == BREAK) break;
+            if (i+1 == LoopCompiler.THRESHOLD && runCompiled(stmt, n - (i+1))) break;
         }
-        isInLoop = false;
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        return null;
+    public Integer visitBreakStmt(Stmt.Break stmt) {
+        return BREAK;
     }
 
     @Override
-    public Void visitContinueStmt(Stmt.Continue stmt) {
-        return null;
+    public Integer visitContinueStmt(Stmt.Continue stmt) {
+        return CONTINUE;
+    }
+
+    // runs a counted loop with its variable in a double, false if the
+    // variable or the limit isn't a number, which the loop has to report
+    private boolean runCounted(Stmt.While stmt) {
+        CountedLoop counted = stmt.counted;
+        Object[] frame = counted.frame(this);
+        Object start = frame[counted.slot];
+        Object limit = counted.limit(this);
+        if (!(start instanceof Double) || !(limit instanceof Double)) return false;
+
+        double value = (double)start;
+        double end = (double)limit;
+        Env body = frame(stmt.body);
+        int iterations = 0;
+        boolean handedOver = false;
+        try {
+            while (counted.test(value, end)) {
+                if (budget != null) budget.pass(stmt.line);
+                if (profiler != null) profiler.pass();
+                if (counted.reads) frame[counted.slot] = value;
+                if (execute(stmt.body, body) == BREAK) break;
+                value += counted.step;
+                if (++iterations == LoopCompiler.THRESHOLD) {
+                    frame[counted.slot] = value;
+                    handedOver = true;
+                    if (runCompiled(stmt, 0)) break;
+                    handedOver = false;
+                }
+            }
+        } finally {
+            // the compiled loop leaves its own value behind
+            if (!handedOver) frame[counted.slot] = value;
+        }
+        return true;
+    }
+
+    // runs the rest of a hot loop as JVM bytecode, false if it can't be
+    private boolean runCompiled(Stmt loop, double remaining) {
+        // compiled loops don't count their passes
+        if (!jit || budget != null) return false;
+        if (!compiledLoops.containsKey(loop)) {
+            compiledLoops.put(loop, LoopCompiler.compile(loop));
+        }
+        CompiledLoop compiled = compiledLoops.get(loop);
+        if (compiled == null) return false;
+
+        if (compiled.enter(this, remaining)) {
+            if (profiler != null) profiler.compiled();
+            return true;
+        }
+        if (compiled.deopts >= CompiledLoop.MAX_DEOPTS) compiledLoops.put(loop, null);
+        return false;
     }
 
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        if (!isInLoop) {
-            if (stmt instanceof Stmt.Break) {
-                Stmt.Break breakStmt = (Stmt.Break) stmt;
-                throw new RuntimeError(breakStmt.token, "'break' must be inside a loop");
-            } else if (stmt instanceof Stmt.Continue) {
-                Stmt.Continue continueStmt = (Stmt.Continue) stmt;
-                throw new RuntimeError(continueStmt.token, "'continue' must be inside a loop");
-            }
-        } else {
-            if (stmt instanceof Stmt.Break) {
-                breakSignal = true;
-            } else if (stmt instanceof Stmt.Continue) {
-                continueSignal = true;
-            }
-        }
-        stmt.accept(this);
+    // the Resolver has made sure break and continue are only used in
+    // loops, so a completion other than NORMAL always has a loop to stop at
+    private int execute(Stmt stmt) {
+        statementsRun++;
+        if (profiler != null && !(stmt instanceof Stmt.Block)) return profiler.execute(this, stmt);
+        return stmt.accept(this);
+    }
+
+    // A loop's block body gets one frame for all its passes. Nothing can
+    // hold on to a frame once its pass ends, and every slot is set by its
+    // let before anything reads it, so what the last pass left is harmless.
+    private Env frame(Stmt body) {
+        if (!(body instanceof Stmt.Block) || ((Stmt.Block)body).slots == 0) return null;
+        envsAllocated++;
+        return new Env(env, ((Stmt.Block)body).slots);
+    }
+
+    private int execute(Stmt body, Env frame) {
+        if (frame == null) return execute(body);
+        return executeBlock(((Stmt.Block)body).statements, frame);
     }
 
-    void executeBlock(List<Stmt> statements, Env env) {
+    int executeBlock(List<Stmt> statements, Env env) {
         Env previous = this.env;
         try {
             this.env = env;
-            if (isInLoop) {
-                for (Stmt statement : statements) {
-                    if (statement instanceof Stmt.Break || breakSignal) {
-                        breakSignal = true;
-                        break;
-                    } else if (statement instanceof Stmt.Continue || continueSignal) {
-                        continueSignal = true;
-                        break;
-                    }
-                    execute(statement);
+            for (Stmt statement : statements) {
+                int completion = execute(statement);
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        } finally {
+            this.env = previous;
+        }
+    }
+
+    // shared by every backend so they all agree on operator semantics
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
+            case NOT:
+                return !isTruthy(right);
+            case MINUS:
+                checkNumberOperand(operator, right);
+                return -(double)right;
+        }
+        return null;
+    }
+
+    // nor and nand short-circuit like or and and, then negate the result
+    static boolean isOr(Token operator) {
+        return operator.type == TokenType.OR || operator.type == TokenType.NOR;
+    }
+
+    static boolean isNegated(Token operator) {
+        return operator.type == TokenType.NOR || operator.type == TokenType.NAND;
+    }
+
+    // the same values as the old (a and not b) or (not a and b) desugaring
+    static Object xor(Token operator, Object left, Object right) {
+        Object result = isTruthy(left) ? !isTruthy(right) : right;
+        return operator.type == TokenType.XNOR ? !isTruthy(result) : result;
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL: return !isEqual(left, right);
+            case EQUAL_EQUAL: return isEqual(left, right);
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return (double)left > (double)right;
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left >= (double)right;
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return (double)left < (double)right;
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left <= (double)right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
+                if (left instanceof CharSequence && right instanceof CharSequence) {
+                    return Rope.concat((CharSequence)left, (CharSequence)right);
                 }
-            } else {
-                for (Stmt statement : statements) {
-                    if (statement instanceof Stmt.Break) {
-                        Stmt.Break breakStmt = (Stmt.Break) statement;
-                        throw new RuntimeError(breakStmt.token, "'break' must be inside a loop");
-                    } else if (statement instanceof Stmt.Continue) {
-                        Stmt.Continue continueStmt = (Stmt.Continue) statement;
-                        throw new RuntimeError(continueStmt.token, "'continue' must be inside a loop");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return (double)left - (double)right;
+            case STAR:
+                CharSequence string = null;
+                Double number = 0.0;
+                if (left instanceof CharSequence) {
+                    if (right instanceof Double) {
+                        string = (CharSequence) left;
+                        number = (Double) right;
+                        if (number % 1 != 0) throw new RuntimeError(operator, "String can only be multiplied by int");
                     } else {
-                        execute(statement);
+                        throw new RuntimeError(operator, "String can only be multiplied by int");
+                    }
+                } else if (right instanceof CharSequence) {
+                    if (left instanceof Double) {
+                        string = (CharSequence) right;
+                        number = (Double) left;
+                        if (number % 1 != 0) throw new RuntimeError(operator, "String can only be multiplied by int");
+                    } else {
+                        throw new RuntimeError(operator, "String can only be multiplied by int");
                     }
                 }
-            }
-        } finally {
-            this.env = previous;
+                if (string != null) {
+                    double d = (double) number;
+                    int i = (int) d;
+                    return Rope.repeat(string, i);
+                }
+
+                checkNumberOperands(operator, left, right);
+                return (double)left * (double)right;
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                if ((double) right == 0) {
+                    throw new RuntimeError(operator, "Division by zero");
+                }
+                return (double)left / (double)right;
+            case MODULO:
+                checkNumberOperands(operator, left, right);
+                if ((double) right == 0) {
+                    throw new RuntimeError(operator, "Modulo by zero");
+                }
+                return (double)left % (double)right;
+        }
+        return null;
+    }
+
+    private Object lookUp(Token name, int depth, int slot) {
+        if (depth == Resolver.GLOBAL) {
+            Object val = globals.values[slot];
+            if (val == Env.UNDEFINED) throw Env.undefined(name);
+            return val;
         }
+        return env.get(depth, slot);
     }
 
-    private boolean isTruthy(Object object) {
+    private void assign(Token name, int depth, int slot, Object val) {
+        if (depth == Resolver.GLOBAL) {
+            if (globals.values[slot] == Env.UNDEFINED) throw Env.undefined(name);
+            globals.values[slot] = val;
+        } else {
+            env.assign(depth, slot, val);
+        }
+    }
+
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
-        if (object instanceof Double) {
-            if (object.toString() == "0.0") return false;
-        }
+        // numbers are always truthy, as in the loop compiler. This used to
+        // compare toString() with "0.0" by identity, which never held.
+        if (object instanceof Double) return true;
         if (object instanceof String) {
             if (object == "") return false;
         }
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
+        if (a instanceof Rope || b instanceof Rope) return Rope.flatten(a).equals(Rope.flatten(b));
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers");
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length()-2);
-            }
-            return text;
-        }
+        if (object instanceof Double) return NumberCodec.toString((double)object);
         return object.toString();
     }
     
-    private Object getUserInput(boolean isNum, Token token) {
-        Object result = null;
-        try {
-            String text = reader.readLine();
+    void write(Object value, String end) {
+        output.write(value, end);
+    }
 
-            if (isNum) {
-                result = Double.parseDouble(text);
-            } else {
-                result = text;
-            }
+    // nil at the end of the input, and for a line readnum can't parse
+    Object getUserInput(boolean isNum, Token token) {
+        // a prompt written just before has to show up before we wait
+        output.flush();
+        try {
+            return isNum ? input.readNumber() : input.readLine();
         } catch (IOException error) {
             throw new RuntimeError(token, "Invalid input");
-        } catch (NumberFormatException error) {}
-        return result;
+        }
     }
 }
\ No newline at end of file
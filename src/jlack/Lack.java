@@ -1,31 +1,208 @@
 package jlack;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Lack {
-    private static final Interpreter interpreter = new Interpreter();
+    // run on the bytecode VM instead of walking the tree
+    static boolean useVm = false;
+    // run on self-specialising nodes instead of walking the tree
+    static boolean useNodes = false;
+    // compile hot loops to JVM bytecode
+    static boolean jit = true;
+    // fold constants and prune dead branches before running
+    static boolean optimise = true;
+    // run a file statement by statement while it is still being parsed
+    static boolean stream = false;
+    // how output is flushed, null to leave it to the output
+    static Output.Flush flush = null;
+    // where parsed scripts are kept between runs, null to always parse
+    static ScriptCache cache = null;
+    // the globals every script starts with, from --prelude or --snapshot
+    static Snapshot snapshot = null;
+    // report where each script spent its time when it ends
+    static boolean profile = false;
+    // where to write the profile's collapsed stacks, null to only report
+    static Path profileStacks = null;
+    // loop passes each script may make and how many milliseconds it may
+    // run for, see Budget
+    static long maxPasses = Long.MAX_VALUE;
+    static long timeout = 0;
 
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // The options above are the command line's and shared, everything a
+    // script can change is in here, so several can run side by side
+    final Interpreter interpreter;
+    private final VM vm;
+    private final PrintStream err;
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Lack() {
+        this(new Interpreter(), System.err);
+    }
+
+    Lack(Interpreter interpreter, PrintStream err) {
+        this(interpreter, err, true);
+    }
+
+    // isNew is false when compiling for a script that is already running,
+    // which has to leave the interpreter as it is
+    private Lack(Interpreter interpreter, PrintStream err, boolean isNew) {
+        this.interpreter = interpreter;
+        this.vm = new VM(interpreter);
+        this.err = err;
+        if (isNew) {
+            interpreter.jit = jit;
+            if (flush != null) interpreter.output.flush = flush;
+            if (snapshot != null) snapshot.restore(interpreter);
+            if (profile) interpreter.profiler = new Profiler();
+            Events.track(interpreter);
+            if (maxPasses != Long.MAX_VALUE || timeout > 0) interpreter.budget = new Budget(maxPasses, timeout);
+        }
+    }
 
     public static void main(String[] args) throws IOException {
-        if (args.length == 0) {
-            runShell();
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        List<String> scripts = new ArrayList<>();
+        int jobs = Runtime.getRuntime().availableProcessors();
+        String prelude = null;
+        String snapshotPath = null;
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--nodes")) {
+                useNodes = true;
+            } else if (arg.equals("--no-jit")) {
+                jit = false;
+            } else if (arg.equals("--no-optimise")) {
+                optimise = false;
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.startsWith("--flush=")) {
+                flush = flushPolicy(arg.substring("--flush=".length()));
+            } else if (arg.equals("--cache")) {
+                cache = new ScriptCache(null);
+            } else if (arg.startsWith("--cache=")) {
+                cache = new ScriptCache(Paths.get(arg.substring("--cache=".length())));
+            } else if (arg.startsWith("--prelude=")) {
+                prelude = arg.substring("--prelude=".length());
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshotPath = arg.substring("--snapshot=".length());
+            } else if (arg.equals("--profile")) {
+                profile = true;
+            } else if (arg.startsWith("--profile=")) {
+                profile = true;
+                profileStacks = Paths.get(arg.substring("--profile=".length()));
+            } else if (arg.startsWith("--budget=")) {
+                maxPasses = limit(arg.substring("--budget=".length()));
+            } else if (arg.startsWith("--timeout=")) {
+                timeout = limit(arg.substring("--timeout=".length()));
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = jobCount(arg.substring("--jobs=".length()));
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                scripts.add(arg);
+            }
+        }
+
+        // only the tree-walker is profiled, and one script's stacks per file
+        if (profile && (useVm || useNodes)) usage();
+        if (profileStacks != null && scripts.size() > 1) usage();
+
+        if (prelude != null || snapshotPath != null) {
+            int status = loadSnapshot(prelude, snapshotPath);
+            if (status != 0) System.exit(status);
+        }
+
+        int status;
+        if (scripts.size() == 0) {
+            new Lack().runShell();
+            status = 0;
+        } else if (scripts.size() == 1) {
+            status = new Lack().runFile(scripts.get(0));
         } else {
-            System.out.println("Usage: jlack <script>");
-            System.exit(64);
+            status = Runner.runScripts(scripts, jobs);
         }
+        if (status != 0) System.exit(status);
     }
 
-    public static void runShell() throws IOException {
+    // Restores the snapshot at path if it was taken of this prelude, or of
+    // any prelude when none is given. Otherwise runs the prelude once and
+    // saves what it leaves behind, for this process and the next.
+    private static int loadSnapshot(String prelude, String path) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        byte[] source = prelude == null ? null : Files.readAllBytes(Paths.get(prelude));
+        byte[] key = source == null ? null : ScriptCache.key(source, charset);
+        if (path != null) {
+            snapshot = Snapshot.read(Paths.get(path), key);
+            if (snapshot != null) return 0;
+            if (source == null) {
+                System.err.println("Could not load snapshot " + path);
+                return 66;
+            }
+        }
+
+        Lack lack = new Lack();
+        lack.run(new String(source, charset));
+        if (lack.hadError) return 65;
+        if (lack.hadRuntimeError) return 70;
+        snapshot = Snapshot.capture(lack.interpreter);
+        if (path != null) {
+            try {
+                snapshot.write(Paths.get(path), key);
+            } catch (IOException error) {
+                System.err.println(String.format("Could not write snapshot %s: %s", path, error));
+            }
+        }
+        return 0;
+    }
+
+    private static Output.Flush flushPolicy(String name) {
+        for (Output.Flush policy : Output.Flush.values()) {
+            if (policy.name().equalsIgnoreCase(name)) return policy;
+        }
+        usage();
+        return null;
+    }
+
+    private static int jobCount(String count) {
+        try {
+            int jobs = Integer.parseInt(count);
+            if (jobs > 0) return jobs;
+        } catch (NumberFormatException error) {}
+        usage();
+        return 0;
+    }
+
+    private static long limit(String value) {
+        try {
+            long limit = Long.parseLong(value);
+            if (limit >= 0) return limit;
+        } catch (NumberFormatException error) {}
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlack [--vm | --nodes | --no-jit | --no-optimise]"
+            + " [--flush=buffer|line|always] [--stream] [--cache[=dir]]"
+            + " [--prelude=script] [--snapshot=file] [--jobs=n] [--profile[=file]]"
+            + " [--budget=passes] [--timeout=ms] [script...]");
+        System.exit(64);
+    }
+
+    void runShell() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
@@ -34,37 +211,170 @@ public class Lack {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
+            // each line is a script of its own, with a budget and clock of its own
+            if (interpreter.budget != null) interpreter.budget = new Budget(maxPasses, timeout);
             run(line);
             hadError = false;
         }
     }
 
-    public static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    // runs a script and returns the status to exit with
+    int runFile(String path) throws IOException {
+        if (stream) {
+            runStream(path);
+        } else if (cache != null) {
+            runCached(Paths.get(path));
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            run(new String(bytes, Charset.defaultCharset()));
+        }
+
+        if (interpreter.profiler != null && !hadError) profile(path);
+        if (hadError) return 65;
+        if (hadRuntimeError) return 70;
+        return 0;
+    }
+
+    // reports where the script spent its time, a run it didn't finish too
+    private void profile(String path) {
+        interpreter.profiler.report(err, path);
+        if (profileStacks == null) return;
+        try {
+            interpreter.profiler.writeCollapsed(profileStacks, Paths.get(path).getFileName().toString());
+        } catch (IOException error) {
+            err.println(String.format("Could not write profile %s: %s", profileStacks, error));
+        }
+    }
 
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+    // Maps the file and lexes, parses and runs one top-level statement at a
+    // time, so only the statement being run is in memory. Unlike run, the
+    // statements before a syntax error have already run when it's found.
+    void runStream(String path) throws IOException {
+        Lexer lexer = new Lexer(MappedSource.map(Paths.get(path), Charset.defaultCharset()), this);
+        Parser parser = new Parser(lexer);
+        try {
+            while (parser.hasNext() && !hadRuntimeError) {
+                Stmt statement = parser.next();
+                // keep parsing after a syntax error to report the rest
+                if (!hadError) execute(Collections.singletonList(statement));
+            }
+        } finally {
+            interpreter.output.flush();
+        }
     }
 
-    public static void run(String source) {
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.lexTokens();
+    // like run, but reuses the tree from the last run if the file is the same
+    private void runCached(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        Charset charset = Charset.defaultCharset();
+        List<Stmt> statements = cache.load(path, bytes, charset, interpreter.symbols);
+        if (statements == null) {
+            statements = parse(new String(bytes, charset));
+            if (hadError) return;
+            // before resolving, which fills in slots that depend on the run
+            cache.store(path, bytes, charset, statements);
+        }
+        run(statements);
+    }
+
+    void run(String source) {
+        List<Stmt> statements = parse(source);
+        if (hadError) return;
+        run(statements);
+    }
+
+    private List<Stmt> parse(String source) {
+        // events only once something records them, see Events
+        boolean recording = Events.isRecording();
+        Events.Lex lex = recording ? new Events.Lex() : null;
+        if (recording) lex.begin();
+        Lexer lexer = new Lexer(source, this);
+        TokenBuffer tokens = lexer.lexTokens();
+        if (recording && lex.shouldCommit()) {
+            lex.length = source.length();
+            lex.tokens = tokens.size();
+            lex.commit();
+        }
         // for (Token token : tokens) System.out.println(token);
 
-        Parser parser = new Parser(tokens);
+        Events.Parse parse = recording ? new Events.Parse() : null;
+        if (recording) parse.begin();
+        Parser parser = new Parser(tokens, this);
         List<Stmt> statements = parser.parse();
+        if (recording && parse.shouldCommit()) {
+            parse.tokens = tokens.size();
+            parse.statements = statements.size();
+            parse.commit();
+        }
+        return statements;
+    }
+
+    private void run(List<Stmt> statements) {
+        try {
+            execute(statements);
+        } finally {
+            // the shell prompt and anything else go straight to System.out
+            interpreter.output.flush();
+        }
+    }
+
+    private void execute(List<Stmt> statements) {
+        boolean recording = Events.isRecording();
+        Events.Execute event = recording ? new Events.Execute() : null;
+        if (recording) event.begin();
+        try {
+            resolveAndRun(statements);
+        } finally {
+            if (recording && event.shouldCommit()) {
+                event.statements = statements.size();
+                event.backend = useVm ? "vm" : useNodes ? "nodes" : "tree";
+                event.commit();
+            }
+        }
+    }
+
+    private void resolveAndRun(List<Stmt> statements) {
+        Resolver resolver = new Resolver(this);
+        resolver.resolve(statements);
 
         if (hadError) return;
+        if (optimise) statements = new Optimiser().optimise(statements);
         // System.out.println(new AstPrinter().print(expression));
-        interpreter.interpret(statements);
+        try {
+            if (useVm) {
+                vm.interpret(new Compiler().compile(statements));
+            } else if (useNodes) {
+                interpreter.interpret(new NodeBuilder().build(statements));
+            } else {
+                interpreter.interpret(statements);
+            }
+        } catch (RuntimeError error) {
+            runtimeError(error);
+        }
     }
 
-    static void error(int line, String msg) {
+    // Compiles a string eval'd at a site that sees locals. Its syntax and
+    // resolution errors happen while the script runs, so they are thrown
+    // at the eval instead of being reported.
+    static Expr compileEval(Interpreter interpreter, Resolver.Locals locals, Token token, String source) {
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        Lack lack = new Lack(interpreter, new PrintStream(messages, true), false);
+
+        Parser parser = new Parser(new Lexer(source, lack).lexTokens(), lack);
+        Expr expr = parser.parseExpression();
+        if (!lack.hadError) new Resolver(lack, locals).resolve(expr);
+        if (lack.hadError) {
+            String message = messages.toString().split("\\R", 2)[0];
+            throw new RuntimeError(token, "Invalid eval, " + message);
+        }
+        return optimise ? new Optimiser().optimise(expr) : expr;
+    }
+
+    void error(int line, String msg) {
         report(line, "", msg);
     }
 
-    static void error(Token token, String msg) {
+    void error(Token token, String msg) {
         if (token.type == TokenType.EOF) {
             report(token.line, "at end", msg);
         } else {
@@ -72,17 +382,26 @@ public class Lack {
         }
     }
 
-    private static void report(int line, String location, String msg) {
-        System.err.println(String.format(
+    private void report(int line, String location, String msg) {
+        err.println(String.format(
             (location == "" ? "<line %d> Error%s: %s" : "<line %d> Error %s: %s"), line, location, msg)
         );
         hadError = true;
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(
+    void runtimeError(RuntimeError error) {
+        interpreter.output.flush();
+        err.println(
             String.format("<line %d> RuntimeError: %s", error.token.line, error.getMessage())
         );
         hadRuntimeError = true;
+
+        if (!Events.isRecording()) return;
+        Events.RuntimeError event = new Events.RuntimeError();
+        if (event.shouldCommit()) {
+            event.line = error.token.line;
+            event.message = error.getMessage();
+            event.commit();
+        }
     }
-}
\ No newline at end of file
+}
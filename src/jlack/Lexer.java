@@ -1,33 +1,45 @@
 package jlack;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import static jlack.TokenType.*;
 
 public class Lexer {
-    private String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final CharSequence source;
+    private final SymbolTable symbols;
+    final Lack lack;
+    final TokenBuffer tokens;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    Lexer(String source) {
+    Lexer(CharSequence source, Lack lack) {
         this.source = source;
+        this.symbols = lack.interpreter.symbols;
+        this.lack = lack;
+        this.tokens = new TokenBuffer(source);
     }
 
-    List<Token> lexTokens() {
+    TokenBuffer lexTokens() {
+        // scripts average a token every four or five chars
+        tokens.reserve(source.length() / 4);
         while (!isAtEnd()) {
             start = current;
             lexToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line);
         return tokens;
     }
 
+    // lexes just far enough for one more token, EOF once the source runs out
+    void next() {
+        int size = tokens.size();
+        while (tokens.size() == size && !isAtEnd()) {
+            start = current;
+            lexToken();
+        }
+        if (tokens.size() == size) tokens.add(EOF, current, 0, line);
+    }
+
     private void lexToken() {
         char c = advance();
         switch (c) {
@@ -73,7 +85,7 @@ public class Lexer {
                 if (match('=')) {
                     addToken(BANG_EQUAL);
                 } else {
-                    Lack.error(line, "Unexpected character " + c);
+                    lack.error(line, "Unexpected character " + c);
                 }
                 break;
             case '=': addToken(match('=') ? EQUAL_EQUAL : EQUAL); break;
@@ -89,7 +101,7 @@ public class Lexer {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lack.error(line, "Unexpected character " + c);
+                    lack.error(line, "Unexpected character " + c);
                     break;
                 }
         }
@@ -132,12 +144,7 @@ public class Lexer {
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        String lexeme = source.substring(start, current);
-        tokens.add(new Token(type, lexeme, literal, line));
+        tokens.add(type, start, current - start, line);
     }
 
     private void string(char quote) {
@@ -147,13 +154,12 @@ public class Lexer {
         }
 
         if (isAtEnd()) {
-            Lack.error(line, "Unterminated string");
+            lack.error(line, "Unterminated string");
             return;
         }
 
         advance();
-        String val = source.substring(start+1, current-1);
-        addToken(STRING, val);
+        addToken(STRING);
     }
 
     private void number(char c) {
@@ -164,48 +170,13 @@ public class Lexer {
                 while (isDigit(peek())) advance();
             }
         }
-        addToken(NUMBER, Double.parseDouble('0' + source.substring(start, current)));
+        tokens.addNumber(start, current - start, line, NumberCodec.parse(source, start, current));
     }
 
     private void identifier() {
         while (isAlphaNum(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
-    }
-
-    private static final Map<String, TokenType> keywords;
-    static {
-        keywords = new HashMap<>();
-        keywords.put("write", WRITE);
-        keywords.put("writeln", WRITELN);
-        keywords.put("read", READ);
-        keywords.put("readnum", READNUM);
-        keywords.put("eval", EVAL);
-        keywords.put("let", LET);
-        keywords.put("true", TRUE);
-        keywords.put("false", FALSE);
-        keywords.put("nil", NIL);
-        keywords.put("if", IF);
-        keywords.put("else", ELSE);
-        keywords.put("not", NOT);
-        keywords.put("or", OR);
-        keywords.put("and", AND);
-        keywords.put("xor", XOR);
-        keywords.put("nor", NOR);
-        keywords.put("nand", NAND);
-        keywords.put("xnor", XNOR);
-        keywords.put("for", FOR);
-        keywords.put("while", WHILE);
-        keywords.put("repeat", REPEAT);
-        keywords.put("until", UNTIL);
-        keywords.put("break", BREAK);
-        keywords.put("continue", CONTINUE);
-        keywords.put("fun", FUN);
-        keywords.put("return", RETURN);
-        keywords.put("class", CLASS);
-        keywords.put("this", THIS);
-        keywords.put("super", SUPER);
-    }
-}
\ No newline at end of file
+        // keywords are in the table too, so one lookup tells them apart
+        Symbol symbol = symbols.intern(source, start, current);
+        tokens.addSymbol(start, current - start, line, symbol);
+    }
+}
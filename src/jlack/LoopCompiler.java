@@ -0,0 +1,853 @@
+package jlack;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a hot while or repeat-for loop into a hidden JVM class so HotSpot
+// can optimise it. Only loops whose variables are all numbers are handled:
+// inside such a loop every expression has a type known at compile time,
+// so the generated code works on unboxed doubles and needs no type checks.
+// CompiledLoop.enter guards that assumption before every entry.
+class LoopCompiler implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+    static final int THRESHOLD = 1000;
+
+    private static class Unsupported extends RuntimeException {}
+
+    // static types of compiled expressions
+    private static final int NUM = 0;
+    private static final int BOOL = 1;
+    private static final int STR = 2;
+    private static final int NIL = 3;
+
+    // jvm locals: 0 this, 1 the interpreter, 2 the live variables
+    private static final int FIRST_LOCAL = 3;
+
+    private static class Label {
+        int position = -1;
+        int stack = 0;
+        final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final Label breakLabel;
+        final Label continueLabel;
+
+        Loop(Loop enclosing, Label breakLabel, Label continueLabel) {
+            this.enclosing = enclosing;
+            this.breakLabel = breakLabel;
+            this.continueLabel = continueLabel;
+        }
+    }
+
+    static CompiledLoop compile(Stmt loop) {
+        try {
+            // the first pass only finds the variables that live outside the loop
+            LoopCompiler scan = new LoopCompiler(new HashMap<>());
+            scan.compileLoop(loop);
+
+            LoopCompiler compiler = new LoopCompiler(scan.outer);
+            compiler.compileLoop(loop);
+            return compiler.define();
+        } catch (Unsupported error) {
+            return null;
+        }
+    }
+
+    // (ancestor depth, slot) of an outer variable -> its index in live[]
+    private final Map<Long, Integer> outer;
+    private final List<Map<Integer, Integer>> blocks = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Pool pool = new Pool();
+    private final Bytes code = new Bytes();
+    private final List<Label> labels = new ArrayList<>();
+    private int locals;
+    private int maxLocals;
+    private int stack = 0;
+    private int maxStack = 0;
+    private boolean reachable = true;
+    private Loop loop = null;
+
+    private LoopCompiler(Map<Long, Integer> outer) {
+        this.outer = outer;
+        // one more for the remaining count of a repeat-for
+        this.locals = FIRST_LOCAL + 2 * (outer.size() + 1);
+        this.maxLocals = locals;
+    }
+
+    private void compileLoop(Stmt root) {
+        int count = FIRST_LOCAL + 2 * outer.size();
+        for (int i = 0; i <= outer.size(); i++) {
+            op(0x2c, 1); // aload_2
+            push(i);
+            op(0x31, 0); // daload
+            dstore(FIRST_LOCAL + 2 * i);
+        }
+
+        Label exit = new Label();
+        if (root instanceof Stmt.While) {
+            whileLoop((Stmt.While)root, exit);
+        } else {
+            Stmt.RepeatFor stmt = (Stmt.RepeatFor)root;
+            countedLoop(stmt.body, count, exit);
+        }
+        place(exit);
+        saveAll();
+        op(0xb1, 0); // return
+    }
+
+    // -- statements ---------------------------------------------------------
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots > 0) blocks.add(new HashMap<>());
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        if (stmt.slots > 0) blocks.remove(blocks.size()-1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        pop(expression(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitWriteStmt(Stmt.Write stmt) {
+        op(0x2b, 1); // aload_1
+        box(expression(stmt.expression));
+        ldc(pool.string(stmt.end));
+        invoke(0xb6, "jlack/Interpreter", "write", "(Ljava/lang/Object;Ljava/lang/String;)V", -3);
+        return null;
+    }
+
+    @Override
+    public Void visitReadStmt(Stmt.Read stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReadNumStmt(Stmt.ReadNum stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLetStmt(Stmt.Let stmt) {
+        // a variable that starts as nil is not a number
+        if (stmt.initialiser == null) throw new Unsupported();
+        expect(NUM, expression(stmt.initialiser));
+
+        Map<Integer, Integer> block = blocks.get(blocks.size()-1);
+        Integer local = block.get(stmt.slot);
+        if (local == null) {
+            local = allocate();
+            block.put(stmt.slot, local);
+        }
+        dstore(local);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseLabel = new Label();
+        branchIfFalse(stmt.condition, elseLabel);
+        stmt.thenBranch.accept(this);
+
+        if (stmt.elseBranch == null) {
+            place(elseLabel);
+            return null;
+        }
+
+        Label end = new Label();
+        jump(0xa7, 0, end); // goto
+        place(elseLabel);
+        stmt.elseBranch.accept(this);
+        place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label exit = new Label();
+        whileLoop(stmt, exit);
+        place(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+        Label start = new Label();
+        Label exit = new Label();
+        Label next = new Label();
+
+        enterLoop(exit, next);
+        place(start);
+        stmt.body.accept(this);
+        place(next);
+        branchIfFalse(stmt.condition, start);
+        exitLoop();
+        place(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatForStmt(Stmt.RepeatFor stmt) {
+        expect(NUM, expression(stmt.times));
+        int count = allocate();
+        dstore(count);
+
+        // same check as the tree-walker: times % 1 != 0
+        Label integer = new Label();
+        dload(count);
+        op(0x0f, 2); // dconst_1
+        op(0x73, -2); // drem
+        op(0x0e, 2); // dconst_0
+        op(0x97, -3); // dcmpl
+        jump(0x99, -1, integer); // ifeq
+        fail(stmt.forToken, "Expected integer after 'for'");
+        place(integer);
+
+        Label exit = new Label();
+        countedLoop(stmt.body, count, exit);
+        place(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        jump(0xa7, 0, loop.breakLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        jump(0xa7, 0, loop.continueLabel);
+        return null;
+    }
+
+    private void whileLoop(Stmt.While stmt, Label exit) {
+        Label start = new Label();
+        Label next = new Label();
+
+        enterLoop(exit, next);
+        place(start);
+        if (stmt.condition != null) branchIfFalse(stmt.condition, exit);
+        stmt.body.accept(this);
+        place(next);
+        if (stmt.increment != null) pop(expression(stmt.increment));
+        jump(0xa7, 0, start);
+        exitLoop();
+    }
+
+    private void countedLoop(Stmt body, int count, Label exit) {
+        Label start = new Label();
+
+        enterLoop(exit, start);
+        place(start);
+        dload(count);
+        op(0x0e, 2); // dconst_0
+        op(0x97, -3); // dcmpl
+        jump(0x9e, -1, exit); // ifle
+        dload(count);
+        op(0x0f, 2); // dconst_1
+        op(0x67, -2); // dsub
+        dstore(count);
+        body.accept(this);
+        jump(0xa7, 0, start);
+        exitLoop();
+    }
+
+    private void enterLoop(Label breakLabel, Label continueLabel) {
+        loop = new Loop(loop, breakLabel, continueLabel);
+    }
+
+    private void exitLoop() {
+        loop = loop.enclosing;
+    }
+
+    // -- expressions --------------------------------------------------------
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        expect(NUM, expression(expr.value));
+        op(0x5c, 2); // dup2
+        dstore(local(expr.depth, expr.slot));
+        return NUM;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS: return arithmetic(expr, 0x63); // dadd
+            case MINUS: return arithmetic(expr, 0x67); // dsub
+            case STAR: return arithmetic(expr, 0x6b); // dmul
+            case SLASH: return divide(expr, 0x6f, "Division by zero"); // ddiv
+            case MODULO: return divide(expr, 0x73, "Modulo by zero"); // drem
+            case EQUAL_EQUAL: return equality(expr, true);
+            case BANG_EQUAL: return equality(expr, false);
+            default: // comparisons
+                Label isFalse = new Label();
+                comparison(expr, isFalse);
+                return materialise(isFalse);
+        }
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return expression(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) {
+            int index = pool.number((double)value);
+            op(0x14, 2); // ldc2_w
+            code.u2(index);
+            return NUM;
+        }
+        if (value instanceof Boolean) {
+            push((boolean)value ? 1 : 0);
+            return BOOL;
+        }
+        if (value instanceof String) {
+            ldc(pool.string((String)value));
+            return STR;
+        }
+        op(0x01, 1); // aconst_null
+        return NIL;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        int type = expression(expr.right);
+        if (expr.operator.type == TokenType.MINUS) {
+            expect(NUM, type);
+            op(0x77, 0); // dneg
+            return NUM;
+        }
+        return not(type);
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        int type = logical(expr);
+        return Interpreter.isNegated(expr.operator) ? not(type) : type;
+    }
+
+    @Override
+    public Integer visitXorExpr(Expr.Xor expr) {
+        int left = expression(expr.left);
+        // a number is truthy, which leaves not right as the result
+        if (left == NUM) {
+            op(0x58, -2); // pop2
+            int type = not(expression(expr.right));
+            return expr.operator.type == TokenType.XNOR ? not(type) : type;
+        }
+
+        expect(BOOL, left);
+        expect(BOOL, expression(expr.right));
+        op(0x82, -1); // ixor
+        if (expr.operator.type == TokenType.XNOR) not(BOOL);
+        return BOOL;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        dload(local(expr.depth, expr.slot));
+        return NUM;
+    }
+
+    @Override
+    public Integer visitEvalExpr(Expr.Eval expr) {
+        throw new Unsupported();
+    }
+
+    private int expression(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private int logical(Expr.Logical expr) {
+        boolean isOr = Interpreter.isOr(expr.operator);
+        int left = expression(expr.left);
+
+        // numbers are always truthy, so the result is known to be one side
+        if (left == NUM) {
+            if (isOr) return NUM;
+            op(0x58, -2); // pop2
+            return expression(expr.right);
+        }
+
+        expect(BOOL, left);
+        Label end = new Label();
+        op(0x59, 1); // dup
+        jump(isOr ? 0x9a : 0x99, -1, end); // ifne : ifeq
+        op(0x57, -1); // pop
+        expect(BOOL, expression(expr.right));
+        place(end);
+        return BOOL;
+    }
+
+    private int not(int type) {
+        // numbers are always truthy
+        if (type == NUM) {
+            op(0x58, -2); // pop2
+            push(0);
+            return BOOL;
+        }
+        expect(BOOL, type);
+        push(1);
+        op(0x82, -1); // ixor
+        return BOOL;
+    }
+
+    private int arithmetic(Expr.Binary expr, int opcode) {
+        expect(NUM, expression(expr.left));
+        expect(NUM, expression(expr.right));
+        op(opcode, -2);
+        return NUM;
+    }
+
+    private int divide(Expr.Binary expr, int opcode, String msg) {
+        expect(NUM, expression(expr.left));
+        expect(NUM, expression(expr.right));
+
+        int divisor = allocate();
+        dstore(divisor);
+        Label nonZero = new Label();
+        dload(divisor);
+        op(0x0e, 2); // dconst_0
+        op(0x97, -3); // dcmpl
+        jump(0x9a, -1, nonZero); // ifne
+        fail(expr.operator, msg);
+        place(nonZero);
+        dload(divisor);
+        op(opcode, -2);
+        return NUM;
+    }
+
+    private int equality(Expr.Binary expr, boolean equal) {
+        int left = expression(expr.left);
+        if (left == NUM) longBits();
+        int right = expression(expr.right);
+        if (right == NUM) longBits();
+
+        Label isFalse = new Label();
+        if (left == NUM && right == NUM) {
+            op(0x94, -3); // lcmp
+            jump(equal ? 0x9a : 0x99, -1, isFalse); // ifne : ifeq
+        } else if (left == BOOL && right == BOOL) {
+            jump(equal ? 0xa0 : 0x9f, -2, isFalse); // if_icmpne : if_icmpeq
+        } else if ((left == NUM || left == BOOL) && (right == NUM || right == BOOL)) {
+            // a number never equals a boolean
+            pop(right);
+            pop(left == NUM ? BOOL : left);
+            if (left == NUM) op(0x58, -2); // pop2
+            push(equal ? 0 : 1);
+            return BOOL;
+        } else {
+            throw new Unsupported();
+        }
+        return materialise(isFalse);
+    }
+
+    // Double.equals compares the raw bits, so NaN == NaN and 0 != -0
+    private void longBits() {
+        invoke(0xb8, "java/lang/Double", "doubleToLongBits", "(D)J", 0);
+    }
+
+    // jumps to isFalse when the comparison does not hold
+    private void comparison(Expr.Binary expr, Label isFalse) {
+        expect(NUM, expression(expr.left));
+        expect(NUM, expression(expr.right));
+        // dcmpg/dcmpl pick the result for NaN so that the comparison fails
+        switch (expr.operator.type) {
+            case LESS: op(0x98, -3); jump(0x9c, -1, isFalse); break; // dcmpg ifge
+            case LESS_EQUAL: op(0x98, -3); jump(0x9d, -1, isFalse); break; // dcmpg ifgt
+            case GREATER: op(0x97, -3); jump(0x9e, -1, isFalse); break; // dcmpl ifle
+            case GREATER_EQUAL: op(0x97, -3); jump(0x9b, -1, isFalse); break; // dcmpl iflt
+            default: throw new Unsupported();
+        }
+    }
+
+    private void branchIfFalse(Expr condition, Label target) {
+        if (condition instanceof Expr.Binary) {
+            switch (((Expr.Binary)condition).operator.type) {
+                case LESS:
+                case LESS_EQUAL:
+                case GREATER:
+                case GREATER_EQUAL:
+                    comparison((Expr.Binary)condition, target);
+                    return;
+                default: // pass
+            }
+        }
+
+        int type = expression(condition);
+        if (type == NUM) {
+            op(0x58, -2); // pop2, numbers are always truthy
+        } else if (type == BOOL) {
+            jump(0x99, -1, target); // ifeq
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    // turns a pending false jump into a 0 or 1 on the stack
+    private int materialise(Label isFalse) {
+        Label end = new Label();
+        push(1);
+        jump(0xa7, 0, end); // goto
+        place(isFalse);
+        push(0);
+        place(end);
+        return BOOL;
+    }
+
+    private void box(int type) {
+        if (type == NUM) {
+            invoke(0xb8, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+        } else if (type == BOOL) {
+            invoke(0xb8, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", 0);
+        }
+    }
+
+    private void pop(int type) {
+        if (type == NUM) {
+            op(0x58, -2); // pop2
+        } else {
+            op(0x57, -1); // pop
+        }
+    }
+
+    private void expect(int expected, int type) {
+        if (type != expected) throw new Unsupported();
+    }
+
+    // saves the live variables, then throws the same error the tree-walker would
+    private void fail(Token token, String msg) {
+        saveAll();
+        op(0x2a, 1); // aload_0
+        constants.add(token);
+        push(constants.size()-1);
+        ldc(pool.string(msg));
+        invoke(0xb6, "jlack/CompiledLoop", "error", "(ILjava/lang/String;)Ljlack/RuntimeError;", -2);
+        op(0xbf, -1); // athrow
+        reachable = false;
+    }
+
+    private void saveAll() {
+        for (int i = 0; i < outer.size(); i++) {
+            op(0x2c, 1); // aload_2
+            push(i);
+            dload(FIRST_LOCAL + 2 * i);
+            op(0x52, -4); // dastore
+        }
+    }
+
+    // -- variables ----------------------------------------------------------
+
+    private int local(int depth, int slot) {
+        if (depth != Resolver.GLOBAL && depth < blocks.size()) {
+            return blocks.get(blocks.size()-1 - depth).get(slot);
+        }
+
+        int ancestor = depth == Resolver.GLOBAL ? Resolver.GLOBAL : depth - blocks.size();
+        long key = ((long)ancestor << 32) | slot;
+        Integer index = outer.get(key);
+        if (index == null) {
+            index = outer.size();
+            outer.put(key, index);
+        }
+        return FIRST_LOCAL + 2 * index;
+    }
+
+    private int allocate() {
+        int local = locals;
+        locals += 2;
+        maxLocals = Math.max(maxLocals, locals);
+        if (locals > 0xffff) throw new Unsupported();
+        return local;
+    }
+
+    // -- bytecode -----------------------------------------------------------
+
+    private void op(int opcode, int effect) {
+        code.u1(opcode);
+        stack += effect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void push(int value) {
+        if (value >= -1 && value <= 5) {
+            op(0x03 + value, 1); // iconst_<n>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(0x10, 1); // bipush
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(0x11, 1); // sipush
+            code.u2(value);
+        } else {
+            ldc(pool.integer(value));
+        }
+    }
+
+    private void ldc(int index) {
+        if (index <= 0xff) {
+            op(0x12, 1); // ldc
+            code.u1(index);
+        } else {
+            op(0x13, 1); // ldc_w
+            code.u2(index);
+        }
+    }
+
+    private void dload(int local) {
+        variable(0x18, local, 2);
+    }
+
+    private void dstore(int local) {
+        variable(0x39, local, -2);
+    }
+
+    private void variable(int opcode, int local, int effect) {
+        if (local <= 0xff) {
+            op(opcode, effect);
+            code.u1(local);
+        } else {
+            code.u1(0xc4); // wide
+            op(opcode, effect);
+            code.u2(local);
+        }
+    }
+
+    private void invoke(int opcode, String owner, String name, String descriptor, int effect) {
+        op(opcode, effect);
+        code.u2(pool.method(owner, name, descriptor));
+    }
+
+    private void jump(int opcode, int effect, Label label) {
+        op(opcode, effect);
+        label.jumps.add(code.length-1);
+        label.stack = stack;
+        code.u2(0);
+        if (opcode == 0xa7) reachable = false; // goto
+    }
+
+    private void place(Label label) {
+        label.position = code.length;
+        labels.add(label);
+        // code after a goto is only reached through jumps to this label
+        if (!reachable) stack = label.stack;
+        reachable = true;
+    }
+
+    private void patch(Label label) {
+        for (int jump : label.jumps) {
+            int offset = label.position - jump;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) throw new Unsupported();
+            code.bytes[jump+1] = (byte)(offset >> 8);
+            code.bytes[jump+2] = (byte)offset;
+        }
+    }
+
+    // -- class file ---------------------------------------------------------
+
+    private CompiledLoop define() {
+        if (code.length > 0xffff) throw new Unsupported();
+        for (Label label : labels) patch(label);
+
+        int thisClass = pool.type("jlack/HotLoop");
+        int superClass = pool.type("jlack/CompiledLoop");
+        int init = pool.utf8("<init>");
+        int initType = pool.utf8("([Ljava/lang/Object;)V");
+        int superInit = pool.method("jlack/CompiledLoop", "<init>", "([Ljava/lang/Object;)V");
+        int run = pool.utf8("run");
+        int runType = pool.utf8("(Ljlack/Interpreter;[D)V");
+        int codeName = pool.utf8("Code");
+
+        Bytes constructor = new Bytes();
+        constructor.u1(0x2a); // aload_0
+        constructor.u1(0x2b); // aload_1
+        constructor.u1(0xb7); // invokespecial
+        constructor.u2(superInit);
+        constructor.u1(0xb1); // return
+
+        Bytes file = new Bytes();
+        file.u4(0xcafebabe);
+        file.u2(0);
+        file.u2(49); // old enough to not need stack map frames
+        file.u2(pool.count);
+        file.append(pool.bytes);
+        file.u2(0x0030); // final super
+        file.u2(thisClass);
+        file.u2(superClass);
+        file.u2(0); // interfaces
+        file.u2(0); // fields
+        file.u2(2); // methods
+        method(file, init, initType, codeName, 2, 2, constructor);
+        method(file, run, runType, codeName, maxStack, maxLocals, code);
+        file.u2(0); // attributes
+
+        try {
+            Class<?> type = MethodHandles.lookup()
+                .defineHiddenClass(Arrays.copyOf(file.bytes, file.length), true)
+                .lookupClass();
+            CompiledLoop compiled = (CompiledLoop)type.getDeclaredConstructor(Object[].class)
+                .newInstance((Object)constants.toArray());
+
+            compiled.depths = new int[outer.size()];
+            compiled.slots = new int[outer.size()];
+            for (Map.Entry<Long, Integer> variable : outer.entrySet()) {
+                compiled.depths[variable.getValue()] = (int)(variable.getKey() >> 32);
+                compiled.slots[variable.getValue()] = (int)(long)variable.getKey();
+            }
+            return compiled;
+        } catch (ReflectiveOperationException | LinkageError error) {
+            throw new Unsupported();
+        }
+    }
+
+    private static void method(Bytes file, int name, int descriptor, int codeName,
+            int maxStack, int maxLocals, Bytes code) {
+        file.u2(0); // package-private
+        file.u2(name);
+        file.u2(descriptor);
+        file.u2(1);
+        file.u2(codeName);
+        file.u4(12 + code.length);
+        file.u2(maxStack);
+        file.u2(maxLocals);
+        file.u4(code.length);
+        file.append(code);
+        file.u2(0); // exception table
+        file.u2(0); // attributes
+    }
+
+    private static class Bytes {
+        byte[] bytes = new byte[256];
+        int length = 0;
+
+        void u1(int value) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte)value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void append(Bytes other) {
+            for (int i = 0; i < other.length; i++) u1(other.bytes[i]);
+        }
+    }
+
+    private static class Pool {
+        final Bytes bytes = new Bytes();
+        private final Map<String, Integer> entries = new HashMap<>();
+        int count = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get("utf8 " + value);
+            if (index != null) return index;
+
+            // modified UTF-8, as class files want it
+            Bytes encoded = new Bytes();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    encoded.u1(c);
+                } else if (c < 0x800) {
+                    encoded.u1(0xc0 | (c >> 6));
+                    encoded.u1(0x80 | (c & 0x3f));
+                } else {
+                    encoded.u1(0xe0 | (c >> 12));
+                    encoded.u1(0x80 | ((c >> 6) & 0x3f));
+                    encoded.u1(0x80 | (c & 0x3f));
+                }
+            }
+            if (encoded.length > 0xffff) throw new Unsupported();
+
+            bytes.u1(1);
+            bytes.u2(encoded.length);
+            bytes.append(encoded);
+            return add("utf8 " + value, 1);
+        }
+
+        int type(String name) {
+            int utf8 = utf8(name);
+            Integer index = entries.get("class " + name);
+            if (index != null) return index;
+            bytes.u1(7);
+            bytes.u2(utf8);
+            return add("class " + name, 1);
+        }
+
+        int string(String value) {
+            int utf8 = utf8(value);
+            Integer index = entries.get("string " + value);
+            if (index != null) return index;
+            bytes.u1(8);
+            bytes.u2(utf8);
+            return add("string " + value, 1);
+        }
+
+        int integer(int value) {
+            Integer index = entries.get("int " + value);
+            if (index != null) return index;
+            bytes.u1(3);
+            bytes.u4(value);
+            return add("int " + value, 1);
+        }
+
+        int number(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = entries.get("double " + bits);
+            if (index != null) return index;
+            bytes.u1(6);
+            bytes.u4((int)(bits >> 32));
+            bytes.u4((int)bits);
+            // doubles take up two entries
+            return add("double " + bits, 2);
+        }
+
+        int method(String owner, String name, String descriptor) {
+            String key = "method " + owner + "." + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+
+            int type = type(owner);
+            int nameUtf8 = utf8(name);
+            int descriptorUtf8 = utf8(descriptor);
+            bytes.u1(12);
+            bytes.u2(nameUtf8);
+            bytes.u2(descriptorUtf8);
+            int nameAndType = add("nameandtype " + name + descriptor, 1);
+
+            bytes.u1(10);
+            bytes.u2(type);
+            bytes.u2(nameAndType);
+            return add(key, 1);
+        }
+
+        private int add(String key, int size) {
+            int index = count;
+            entries.put(key, index);
+            count += size;
+            if (count > 0xffff) throw new Unsupported();
+            return index;
+        }
+    }
+}
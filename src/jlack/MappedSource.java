@@ -0,0 +1,53 @@
+package jlack;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A script mapped into memory instead of read onto the heap. The lexer sees
+// one char per byte, which is enough because everything it matches on is
+// ASCII; the text it keeps is decoded properly by subSequence.
+final class MappedSource implements CharSequence {
+    private final MappedByteBuffer bytes;
+    private final Charset charset;
+
+    private MappedSource(MappedByteBuffer bytes, Charset charset) {
+        this.bytes = bytes;
+        this.charset = charset;
+    }
+
+    static MappedSource map(Path path, Charset charset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(path + " is too large to map");
+            return new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), charset);
+        }
+    }
+
+    @Override
+    public int length() {
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char)(bytes.get(index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        // same as String.substring, so '' still lexes to the interned ""
+        if (start == end) return "";
+        byte[] text = new byte[end - start];
+        bytes.get(start, text);
+        return new String(text, charset);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
@@ -0,0 +1,22 @@
+package jlack;
+
+// executable tree built from the resolved Expr/Stmt trees, see NodeBuilder
+abstract class Node {
+    Node parent;
+
+    <T extends Node> T adopt(T child) {
+        if (child != null) child.parent = this;
+        return child;
+    }
+
+    // swaps this node for another one in its parent, used to specialise
+    <T extends Node> T replace(T replacement) {
+        parent.replaceChild(this, replacement);
+        replacement.parent = parent;
+        return replacement;
+    }
+
+    void replaceChild(Node old, Node replacement) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children");
+    }
+}
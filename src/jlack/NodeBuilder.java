@@ -0,0 +1,141 @@
+package jlack;
+
+import java.util.List;
+
+// turns resolved statements into self-specialising nodes
+class NodeBuilder implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+
+    StmtNode build(List<Stmt> statements) {
+        return new StmtNode.Sequence(buildAll(statements));
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots == 0) return new StmtNode.Sequence(buildAll(stmt.statements));
+        return new StmtNode.Block(buildAll(stmt.statements), stmt.slots);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitWriteStmt(Stmt.Write stmt) {
+        return new StmtNode.Write(build(stmt.expression), stmt.end);
+    }
+
+    @Override
+    public StmtNode visitReadStmt(Stmt.Read stmt) {
+        return new StmtNode.Read(stmt.name, stmt.token, false, stmt.depth, stmt.slot);
+    }
+
+    @Override
+    public StmtNode visitReadNumStmt(Stmt.ReadNum stmt) {
+        return new StmtNode.Read(stmt.name, stmt.token, true, stmt.depth, stmt.slot);
+    }
+
+    @Override
+    public StmtNode visitLetStmt(Stmt.Let stmt) {
+        ExprNode initialiser = stmt.initialiser == null ? null : build(stmt.initialiser);
+        return new StmtNode.Let(initialiser, stmt.slot);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        StmtNode elseBranch = stmt.elseBranch == null ? null : build(stmt.elseBranch);
+        return new StmtNode.If(build(stmt.condition), build(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        ExprNode increment = stmt.increment == null ? null : build(stmt.increment);
+        ExprNode condition = stmt.condition == null ? null : build(stmt.condition);
+        return new StmtNode.While(condition, build(stmt.body), increment, stmt.counted, stmt.line);
+    }
+
+    @Override
+    public StmtNode visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+        return new StmtNode.RepeatUntil(build(stmt.condition), build(stmt.body), stmt.line);
+    }
+
+    @Override
+    public StmtNode visitRepeatForStmt(Stmt.RepeatFor stmt) {
+        return new StmtNode.RepeatFor(build(stmt.times), build(stmt.body), stmt.forToken, stmt.line);
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Stmt.Break stmt) {
+        return new StmtNode.Jump(StmtNode.BREAK);
+    }
+
+    @Override
+    public StmtNode visitContinueStmt(Stmt.Continue stmt) {
+        return new StmtNode.Jump(StmtNode.CONTINUE);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth == Resolver.GLOBAL) {
+            return new ExprNode.AssignGlobal(expr.name, build(expr.value), expr.slot);
+        }
+        return new ExprNode.AssignLocal(build(expr.value), expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        return new ExprNode.UninitialisedBinary(build(expr.left), expr.operator, build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Literal(expr.value);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        return new ExprNode.UninitialisedUnary(expr.operator, build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        return new ExprNode.UninitialisedLogical(build(expr.left), expr.operator, build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitXorExpr(Expr.Xor expr) {
+        return new ExprNode.Xor(build(expr.left), expr.operator, build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == Resolver.GLOBAL) return new ExprNode.Global(expr.name, expr.slot);
+        return new ExprNode.Local(expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitEvalExpr(Expr.Eval expr) {
+        return new ExprNode.Eval(build(expr.string), expr.locals, expr.token);
+    }
+
+    private StmtNode[] buildAll(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = build(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private StmtNode build(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private ExprNode build(Expr expr) {
+        return expr.accept(this);
+    }
+}
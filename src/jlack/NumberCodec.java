@@ -0,0 +1,252 @@
+package jlack;
+
+import java.nio.charset.StandardCharsets;
+
+// Formats and parses script numbers without going through intermediate
+// strings. The text is the same as Double.toString without a trailing ".0";
+// the values the fast paths can't prove they get right fall back to the JDK.
+final class NumberCodec {
+    // longest text format writes, "-2.2250738585072014E-308" and friends
+    static final int MAX_LENGTH = 26;
+
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long[] LONG_POWERS = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+        1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+        100000000000000L, 1000000000000000L, 10000000000000000L
+    };
+    // doubles below this are integers exactly when they look like one
+    private static final double EXACT = 9007199254740992.0; // 2^53
+
+    private NumberCodec() {}
+
+    static String toString(double value) {
+        byte[] buffer = new byte[MAX_LENGTH];
+        int length = format(value, buffer, 0);
+        return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    // writes value as ASCII at offset and returns the offset after it,
+    // the buffer needs MAX_LENGTH bytes of room
+    static int format(double value, byte[] buffer, int offset) {
+        if (value != value) return ascii("NaN", buffer, offset);
+        if (value == Double.POSITIVE_INFINITY) return ascii("Infinity", buffer, offset);
+        if (value == Double.NEGATIVE_INFINITY) return ascii("-Infinity", buffer, offset);
+
+        int pos = offset;
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+
+        if (value == Math.rint(value)) {
+            if (value < 1e7) return digits((long)value, buffer, pos);
+            if (value < EXACT) return scientific((long)value, buffer, pos);
+        } else if (value >= 1e-3 && value < 1e7) {
+            int end = decimal(value, buffer, pos);
+            if (end != -1) return end;
+        }
+        return ascii(Double.toString(value), buffer, pos);
+    }
+
+    // The fewest decimal places k for which m / 10^k divides back into value.
+    // m and 10^k are exact doubles, so the division rounds just like parsing
+    // the text would, which makes the result the shortest one that round-trips.
+    private static int decimal(double value, byte[] buffer, int pos) {
+        for (int k = 1; k < LONG_POWERS.length; k++) {
+            double scaled = value * POWERS[k];
+            if (scaled >= EXACT) return -1;
+
+            double m = Math.rint(scaled);
+            if (m / POWERS[k] != value) continue;
+            // two candidates means we can't tell which one is nearest cheaply
+            if ((m - 1) / POWERS[k] == value || (m + 1) / POWERS[k] == value) return -1;
+
+            long digits = (long)m;
+            pos = digits(digits / LONG_POWERS[k], buffer, pos);
+            buffer[pos++] = '.';
+            long fraction = digits % LONG_POWERS[k];
+            for (int i = k - 1; i >= 0; i--) {
+                buffer[pos++] = (byte)('0' + fraction / LONG_POWERS[i] % 10);
+            }
+            return pos;
+        }
+        return -1;
+    }
+
+    // integers from 10^7 up print like 1.2345678E7, with at least one decimal
+    private static int scientific(long value, byte[] buffer, int pos) {
+        int exponent = 0;
+        while (value % 10 == 0) {
+            value /= 10;
+            exponent++;
+        }
+        int count = length(value);
+        exponent += count - 1;
+
+        long scale = LONG_POWERS[count - 1];
+        buffer[pos++] = (byte)('0' + value / scale);
+        buffer[pos++] = '.';
+        if (count == 1) {
+            buffer[pos++] = '0';
+        } else {
+            long rest = value % scale;
+            for (int i = count - 2; i >= 0; i--) {
+                buffer[pos++] = (byte)('0' + rest / LONG_POWERS[i] % 10);
+            }
+        }
+        buffer[pos++] = 'E';
+        return digits(exponent, buffer, pos);
+    }
+
+    private static int digits(long value, byte[] buffer, int pos) {
+        int end = pos + length(value);
+        int i = end;
+        do {
+            buffer[--i] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return end;
+    }
+
+    private static int length(long value) {
+        int count = 1;
+        while (count < LONG_POWERS.length && value >= LONG_POWERS[count]) count++;
+        return count;
+    }
+
+    private static int ascii(String text, byte[] buffer, int pos) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer[pos++] = (byte)text.charAt(i);
+        }
+        return pos;
+    }
+
+    // Parses a number lexeme, digits with an optional fraction, straight from
+    // the source. Up to 15 significant digits and 22 decimal places make
+    // an exact long and power of ten, so one multiply or divide rounds right.
+    static double parse(CharSequence source, int start, int end) {
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean isFraction = false;
+        boolean isExact = true;
+
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '.') {
+                isFraction = true;
+            } else if (mantissa == 0 && c == '0') {
+                // leading zeros only move the point
+                if (isFraction) exponent--;
+            } else if (significant < 15) {
+                mantissa = mantissa * 10 + (c - '0');
+                significant++;
+                if (isFraction) exponent--;
+            } else {
+                isExact = false;
+                break;
+            }
+        }
+
+        if (isExact && exponent >= -22) {
+            return exponent < 0 ? mantissa / POWERS[-exponent] : (double)mantissa;
+        }
+        return Double.parseDouble(source.subSequence(start, end).toString());
+    }
+
+    // Parses a line of input the way Double.parseDouble would, but gives
+    // null instead of throwing when it isn't a number. Plain decimals go
+    // through parse, the rest of what Java accepts (exponents, suffixes,
+    // NaN, Infinity and hex) is checked here and left to the JDK.
+    static Double parseInput(CharSequence text, int start, int end) {
+        // parseDouble trims like String.trim
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+
+        int i = start;
+        boolean isNegative = false;
+        if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+            isNegative = text.charAt(i) == '-';
+            i++;
+        }
+        int digits = i;
+        if (matches(text, i, end, "NaN") || matches(text, i, end, "Infinity")) {
+            return Double.parseDouble(text.subSequence(start, end).toString());
+        }
+        if (end - i > 2 && text.charAt(i) == '0' && (text.charAt(i+1) | 0x20) == 'x') {
+            return isHexFloat(text, i + 2, end) ? Double.parseDouble(text.subSequence(start, end).toString()) : null;
+        }
+
+        i = skipDigits(text, i, end);
+        int count = i - digits;
+        if (i < end && text.charAt(i) == '.') {
+            int fraction = i + 1;
+            i = skipDigits(text, fraction, end);
+            count += i - fraction;
+        }
+        if (count == 0) return null;
+        if (i == end) {
+            double value = parse(text, digits, end);
+            return isNegative ? -value : value;
+        }
+
+        if ((text.charAt(i) | 0x20) == 'e') {
+            i = exponent(text, i + 1, end);
+            if (i < 0) return null;
+        }
+        if (i < end && isSuffix(text.charAt(i))) i++;
+        if (i != end) return null;
+        return Double.parseDouble(text.subSequence(start, end).toString());
+    }
+
+    // hex digits with an optional point, at least one digit, then the
+    // binary exponent Java requires
+    private static boolean isHexFloat(CharSequence text, int i, int end) {
+        int digits = 0;
+        boolean isPoint = false;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && !isPoint) {
+                isPoint = true;
+            } else if (Character.digit(c, 16) >= 0 && c < 0x80) {
+                digits++;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0 || i == end || (text.charAt(i) | 0x20) != 'p') return false;
+        i = exponent(text, i + 1, end);
+        if (i < 0) return false;
+        if (i < end && isSuffix(text.charAt(i))) i++;
+        return i == end;
+    }
+
+    // the end of a signed exponent starting at i, -1 if there isn't one
+    private static int exponent(CharSequence text, int i, int end) {
+        if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) i++;
+        int digits = i;
+        i = skipDigits(text, i, end);
+        return i == digits ? -1 : i;
+    }
+
+    private static int skipDigits(CharSequence text, int i, int end) {
+        while (i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9') i++;
+        return i;
+    }
+
+    private static boolean isSuffix(char c) {
+        return c == 'f' || c == 'F' || c == 'd' || c == 'D';
+    }
+
+    private static boolean matches(CharSequence text, int i, int end, String word) {
+        if (end - i != word.length()) return false;
+        for (int j = 0; j < word.length(); j++) {
+            if (text.charAt(i + j) != word.charAt(j)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,313 @@
+package jlack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Folds constant expressions and prunes dead branches in resolved trees.
+// Every fold goes through the interpreter's own operator helpers, and an
+// expression that would fail at runtime is left alone so it still does.
+class Optimiser implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // longest string a repetition is folded into
+    private static final int MAX_FOLDED_LENGTH = 1024;
+    // most times a repeat-for's body is copied out instead of looped
+    private static final int MAX_UNROLLED = 8;
+
+    List<Stmt> optimise(List<Stmt> statements) {
+        List<Stmt> optimised = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt stmt = optimise(statement);
+            if (stmt instanceof Stmt.RepeatFor && unroll((Stmt.RepeatFor)stmt, optimised)) continue;
+            if (stmt != null) optimised.add(stmt);
+        }
+        return optimised;
+    }
+
+    // Adds a repeat-for with a small constant count as that many copies of
+    // its body. Each copy of a block still gets its own Env like each pass
+    // did, but a body that breaks or continues has to stay a loop.
+    private static boolean unroll(Stmt.RepeatFor loop, List<Stmt> statements) {
+        if (!(loop.times instanceof Expr.Literal)) return false;
+        Object times = ((Expr.Literal)loop.times).value;
+        if (!(times instanceof Double) || (double)times % 1 != 0) return false;
+        if ((double)times > MAX_UNROLLED || hasJump(loop.body)) return false;
+        for (int i = 0; i < (double)times; i++) statements.add(loop.body);
+        return true;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block block = new Stmt.Block(optimise(stmt.statements));
+        block.slots = stmt.slots;
+        return block;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimise(stmt.expression);
+        // nothing to do for a value nobody uses, but reading a global can
+        // still fail if its let never ran
+        if (expression instanceof Expr.Literal) return null;
+        if (expression instanceof Expr.Variable && ((Expr.Variable)expression).depth != Resolver.GLOBAL) return null;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitWriteStmt(Stmt.Write stmt) {
+        return new Stmt.Write(optimise(stmt.expression), stmt.end);
+    }
+
+    @Override
+    public Stmt visitReadStmt(Stmt.Read stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReadNumStmt(Stmt.ReadNum stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitLetStmt(Stmt.Let stmt) {
+        if (stmt.initialiser == null) return stmt;
+        Stmt.Let let = new Stmt.Let(stmt.name, optimise(stmt.initialiser));
+        let.slot = stmt.slot;
+        return let;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = condition(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            Stmt branch = isTruthy(condition) ? stmt.thenBranch : stmt.elseBranch;
+            return branch == null ? null : optimise(branch);
+        }
+        return new Stmt.If(condition, branch(stmt.thenBranch), optimise(stmt.elseBranch));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = stmt.condition == null ? null : condition(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (!isTruthy(condition)) return null;
+            // a loop without a condition runs until it breaks
+            condition = null;
+        }
+        Expr increment = stmt.increment == null ? null : optimise(stmt.increment);
+        Stmt.While loop = new Stmt.While(condition, branch(stmt.body), increment);
+        // folding can turn a limit into a constant
+        loop.counted = CountedLoop.match(loop);
+        return loop;
+    }
+
+    @Override
+    public Stmt visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+        return new Stmt.RepeatUntil(condition(stmt.condition), branch(stmt.body));
+    }
+
+    @Override
+    public Stmt visitRepeatForStmt(Stmt.RepeatFor stmt) {
+        return new Stmt.RepeatFor(optimise(stmt.times), branch(stmt.body), stmt.forToken);
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr.Assign assign = new Expr.Assign(expr.name, optimise(expr.value));
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimise(expr.left);
+        Expr right = optimise(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object a = ((Expr.Literal)left).value;
+            Object b = ((Expr.Literal)right).value;
+            if (isFoldable(expr.operator, a, b)) {
+                try {
+                    // literals are constants the compilers know, not ropes
+                    return new Expr.Literal(Rope.flatten(Interpreter.binary(expr.operator, a, b)));
+                } catch (RuntimeError | IllegalArgumentException error) {
+                    // pass, the error belongs to runtime
+                }
+            }
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimise(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimise(expr.right);
+        if (right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Interpreter.unary(expr.operator, ((Expr.Literal)right).value));
+            } catch (RuntimeError error) {
+                // pass, the error belongs to runtime
+            }
+        }
+
+        // not not x is x when x is already a boolean
+        if (expr.operator.type == TokenType.NOT && isNot(right)) {
+            Expr inner = ((Expr.Unary)right).right;
+            if (isBoolean(inner)) return inner;
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimise(expr.left);
+        if (left instanceof Expr.Literal) {
+            boolean negated = Interpreter.isNegated(expr.operator);
+            if (isTruthy(left) == Interpreter.isOr(expr.operator)) {
+                return negated ? new Expr.Literal(!isTruthy(left)) : left;
+            }
+            return optimise(negated ? not(expr.operator, expr.right) : expr.right);
+        }
+        return new Expr.Logical(left, expr.operator, optimise(expr.right));
+    }
+
+    @Override
+    public Expr visitXorExpr(Expr.Xor expr) {
+        Expr left = optimise(expr.left);
+        if (left instanceof Expr.Literal) {
+            Expr result = isTruthy(left) ? not(expr.operator, expr.right) : expr.right;
+            if (expr.operator.type == TokenType.XNOR) result = not(expr.operator, result);
+            return optimise(result);
+        }
+        return new Expr.Xor(left, expr.operator, optimise(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitEvalExpr(Expr.Eval expr) {
+        Expr.Eval eval = new Expr.Eval(optimise(expr.string), expr.token);
+        eval.locals = expr.locals;
+        return eval;
+    }
+
+    // only truthiness matters in a condition, so every double not goes
+    private Expr condition(Expr condition) {
+        Expr expr = optimise(condition);
+        while (isNot(expr) && isNot(((Expr.Unary)expr).right)) {
+            expr = ((Expr.Unary)((Expr.Unary)expr).right).right;
+        }
+        return expr;
+    }
+
+    // a branch or loop body has to stay a statement even when it does nothing
+    private Stmt branch(Stmt stmt) {
+        Stmt optimised = optimise(stmt);
+        if (optimised != null) return optimised;
+        Stmt.Block empty = new Stmt.Block(new ArrayList<>());
+        empty.slots = 0;
+        return empty;
+    }
+
+    // whether stmt breaks or continues the loop it is in, inner loops
+    // keep their own
+    private static boolean hasJump(Stmt stmt) {
+        if (stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) return true;
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                if (hasJump(statement)) return true;
+            }
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If)stmt;
+            return hasJump(branch.thenBranch) || branch.elseBranch != null && hasJump(branch.elseBranch);
+        }
+        return false;
+    }
+
+    private Stmt optimise(Stmt stmt) {
+        if (stmt == null) return null;
+        Stmt optimised = stmt.accept(this);
+        // a rebuilt statement starts where the original did, a pruned if's
+        // branch keeps its own line
+        if (optimised != null && optimised.line == 0) optimised.line = stmt.line;
+        return optimised;
+    }
+
+    Expr optimise(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private static boolean isTruthy(Expr literal) {
+        return Interpreter.isTruthy(((Expr.Literal)literal).value);
+    }
+
+    private static Expr not(Token operator, Expr right) {
+        return new Expr.Unary(new Token(TokenType.NOT, operator.lexeme, null, operator.line), right);
+    }
+
+    private static boolean isNot(Expr expr) {
+        return expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.NOT;
+    }
+
+    private static boolean isBoolean(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Boolean;
+        if (isNot(expr)) return true;
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            if (Interpreter.isNegated(logical.operator)) return true;
+            return isBoolean(logical.left) && isBoolean(logical.right);
+        }
+        if (expr instanceof Expr.Xor) {
+            Expr.Xor xor = (Expr.Xor)expr;
+            if (xor.operator.type == TokenType.XNOR) return true;
+            return isBoolean(xor.left) && isBoolean(xor.right);
+        }
+        if (expr instanceof Expr.Binary) {
+            switch (((Expr.Binary)expr).operator.type) {
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                case GREATER:
+                case GREATER_EQUAL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    // keeps repetitions from building huge strings at compile time
+    private static boolean isFoldable(Token operator, Object a, Object b) {
+        if (operator.type != TokenType.STAR) return true;
+        if (a instanceof String && b instanceof Double) {
+            return ((String)a).length() * Math.abs((double)b) <= MAX_FOLDED_LENGTH;
+        }
+        if (a instanceof Double && b instanceof String) {
+            return ((String)b).length() * Math.abs((double)a) <= MAX_FOLDED_LENGTH;
+        }
+        return true;
+    }
+}
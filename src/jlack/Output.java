@@ -0,0 +1,95 @@
+package jlack;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+// Buffers everything write/writeln print and hands it to stdout in large
+// chunks. Values are encoded straight into the buffer, numbers through
+// NumberCodec, so printing does not build a string per statement.
+class Output {
+    enum Flush {
+        BUFFER, // when the buffer fills, before input and on exit or error
+        LINE,   // also after every newline
+        ALWAYS  // after every write
+    }
+
+    private static final int SIZE = 8192;
+
+    private final WritableByteChannel channel;
+    private final Charset charset;
+    private final boolean isAscii;
+    private final byte[] bytes = new byte[SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int length = 0;
+    Flush flush;
+
+    Output() {
+        this(new FileOutputStream(FileDescriptor.out).getChannel(), Charset.defaultCharset());
+        // a terminal wants to see each line as it's written
+        if (System.console() != null) this.flush = Flush.LINE;
+    }
+
+    Output(WritableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.charset = charset;
+        // every charset we could be running with agrees with ASCII below 0x80
+        this.isAscii = charset.equals(StandardCharsets.UTF_8)
+            || charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1);
+        this.flush = Flush.BUFFER;
+    }
+
+    void write(Object value, String end) {
+        if (value instanceof String) {
+            append((String)value);
+        } else if (value instanceof Double) {
+            if (SIZE - length < NumberCodec.MAX_LENGTH) flush();
+            length = NumberCodec.format((double)value, bytes, length);
+        } else if (value instanceof Boolean) {
+            append((boolean)value ? "true" : "false");
+        } else {
+            append(Interpreter.stringify(value));
+        }
+        append(end);
+        if (flush == Flush.ALWAYS) flush();
+    }
+
+    void flush() {
+        buffer.clear().limit(length);
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException error) {
+            // pass, System.out drops output errors too
+        }
+        length = 0;
+    }
+
+    private void append(String text) {
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80 || !isAscii) {
+                encode(text.substring(i));
+                return;
+            }
+            if (length == SIZE) flush();
+            bytes[length++] = (byte)c;
+            if (c == '\n' && flush == Flush.LINE) flush();
+        }
+    }
+
+    // the slow path for everything outside ASCII
+    private void encode(String text) {
+        byte[] encoded = text.getBytes(charset);
+        for (byte b : encoded) {
+            if (length == SIZE) flush();
+            bytes[length++] = b;
+        }
+        if (flush == Flush.LINE && text.indexOf('\n') != -1) flush();
+    }
+}
@@ -9,11 +9,22 @@ import static jlack.TokenType.*;
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
+    // pulls tokens on demand when streaming, null for a complete buffer
+    private final Lexer lexer;
+    private final Lack lack;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens, Lack lack) {
         this.tokens = tokens;
+        this.lexer = null;
+        this.lack = lack;
+    }
+
+    Parser(Lexer lexer) {
+        this.tokens = lexer.tokens;
+        this.lexer = lexer;
+        this.lack = lexer.lack;
     }
 
     List<Stmt> parse() {
@@ -24,11 +35,45 @@ public class Parser {
         return statements;
     }
 
+    // the whole input as one expression, for eval, null after a syntax error
+    Expr parseExpression() {
+        try {
+            Expr expr = expression();
+            if (!isAtEnd()) throw error(peek(), "Expected end of expression");
+            return expr;
+        } catch (ParseError error) {
+            return null;
+        }
+    }
+
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    // the next top-level declaration, null after a syntax error
+    Stmt next() {
+        Stmt stmt = declaration();
+        if (lexer != null && current > 2) {
+            // nothing looks further back than two tokens
+            tokens.discard(current-2);
+            current = 2;
+        }
+        return stmt;
+    }
+
     private Expr expression() {
         return assignment();
     }
 
     private Stmt statement() {
+        // where the statement starts, which is what the profiler reports
+        int line = line(0);
+        Stmt stmt = statementAt();
+        stmt.line = line;
+        return stmt;
+    }
+
+    private Stmt statementAt() {
         if (match(WRITE)) return writeStatement("");
         if (match(WRITELN)) return writeStatement("\n");
         if (match(READ)) return readStatement();
@@ -45,7 +90,13 @@ public class Parser {
 
     private Stmt declaration() {
         try {
-            if (match(LET)) return varDeclaration();
+            if (check(LET)) {
+                int line = line(0);
+                advance();
+                Stmt stmt = varDeclaration();
+                stmt.line = line;
+                return stmt;
+            }
             return statement();
         } catch (ParseError error) {
             synchronise();
@@ -61,14 +112,16 @@ public class Parser {
 
     private Stmt readStatement() {
         Token token = peek(-1);
-        Token name = consume(IDENTIFIER, "Expected variable name");
+        consume(IDENTIFIER, "Expected variable name");
+        Token name = peek(-1);
         consume(SEMICOLON, "Expected ';' after variable name");
         return new Stmt.Read(name, token);
     }
 
     private Stmt readNumStatement() {
         Token token = peek(-1);
-        Token name = consume(IDENTIFIER, "Expected variable name");
+        consume(IDENTIFIER, "Expected variable name");
+        Token name = peek(-1);
         consume(SEMICOLON, "Expected ';' after variable name");
         return new Stmt.ReadNum(name, token);
     }
@@ -110,6 +163,7 @@ public class Parser {
     }
 
     private Stmt forStatement() {
+        int line = line(-1);
         Stmt initialiser;
         if (match(SEMICOLON)) initialiser = null;
         else if (match(LET)) {
@@ -117,7 +171,8 @@ public class Parser {
         } else {
             initialiser = expressionStatement();
         }
-        
+        if (initialiser != null) initialiser.line = line;
+
         Expr condition = null;
         if (!check(SEMICOLON)) condition = expression();
         consume(SEMICOLON, "Expected ';' after loop condition");
@@ -139,6 +194,7 @@ public class Parser {
 
         if (condition == null) condition = new Expr.Literal(true);
         body = new Stmt.While(condition, body, increment);
+        body.line = line;
 
         if (initialiser != null) {
             body = new Stmt.Block(Arrays.asList(
@@ -161,7 +217,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expected variable name");
+        consume(IDENTIFIER, "Expected variable name");
+        Token name = peek(-1);
         Expr initialiser = null;
         if (match(EQUAL)) {
             initialiser = expression();
@@ -204,14 +261,7 @@ public class Parser {
         while (match(OR, NOR)) {
             Token operator = peek(-1);
             Expr right = xor();
-
-            if (operator.type == OR) expr = new Expr.Logical(expr, operator, right);
-            
-            if (operator.type == NOR) {
-                Token not = new Token(NOT, "nor", null, operator.line);
-                Token or = new Token(OR, "nor", null, operator.line);
-                expr = new Expr.Unary(not, new Expr.Logical(expr, or, right));
-            }
+            expr = new Expr.Logical(expr, operator, right);
         }
         return expr;
     }
@@ -221,19 +271,7 @@ public class Parser {
         while (match(XOR, XNOR)) {
             Token operator = peek(-1);
             Expr right = and();
-
-            Token not = new Token(NOT, "xor", null, operator.line);
-            Token or = new Token(OR, "xor", null, operator.line);
-            Token and = new Token(AND, "xor", null, operator.line);
-            expr = new Expr.Logical(
-                new Expr.Logical(expr, and, new Expr.Unary(not, right)),
-                or,
-                new Expr.Logical(new Expr.Unary(not, expr), and, right)
-            );
-
-            if (operator.type == XNOR) {
-                expr = new Expr.Unary(not, expr);
-            }
+            expr = new Expr.Xor(expr, operator, right);
         }
         return expr;
     }
@@ -243,14 +281,7 @@ public class Parser {
         while (match(AND, NAND)) {
             Token operator = peek(-1);
             Expr right = equality();
-
-            if (operator.type == AND) expr = new Expr.Logical(expr, operator, right);
-
-            if (operator.type == NAND) {
-                Token not = new Token(NOT, "nand", null, operator.line);
-                Token and = new Token(AND, "nand", null, operator.line);
-                expr = new Expr.Unary(not, new Expr.Logical(expr, and, right));
-            }
+            expr = new Expr.Logical(expr, operator, right);
         }
         return expr;
     }
@@ -309,8 +340,9 @@ public class Parser {
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(FALSE)) return new Expr.Literal(false);
         if (match(NIL)) return new Expr.Literal(null);
-        if (match(NUMBER, STRING)) return new Expr.Literal(peek(-1).literal);
+        if (match(NUMBER, STRING)) return new Expr.Literal(tokens.literal(current-1));
         if (match(IDENTIFIER)) return new Expr.Variable(peek(-1));
+        if (match(EVAL)) return evalExpr();
         if (match(LEFT_PAREN)) {
             Expr expr = expression();
             consume(RIGHT_PAREN, "Expected ')' after expression");
@@ -320,12 +352,11 @@ public class Parser {
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return type(0) == EOF;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) current++;
-        return peek(-1);
     }
 
     private boolean match(TokenType... types) {
@@ -338,13 +369,13 @@ public class Parser {
         return false;
     }
 
-    private Token consume(TokenType type, String msg) {
-        if (check(type)) return advance();
-        throw error(peek(), msg);
+    private void consume(TokenType type, String msg) {
+        if (!check(type)) throw error(peek(), msg);
+        advance();
     }
 
     private ParseError error(Token token, String msg) {
-        Lack.error(token, msg);
+        lack.error(token, msg);
         return new ParseError();
     }
 
@@ -352,9 +383,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (peek(-1).type == SEMICOLON) return;
+            if (type(-1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (type(0)) {
                 case WRITE:
                 case WRITELN:
                 case READ:
@@ -376,15 +407,30 @@ public class Parser {
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return type(0) == type;
     }
 
     private Token peek() {
         return peek(0);
     }
 
-    // previous() = peek(-1)
+    // previous() = peek(-1), only called for tokens the tree keeps or errors
     private Token peek(int step) {
-        return tokens.get(current + step);
+        fill(current + step);
+        return tokens.token(current + step);
+    }
+
+    private int line(int step) {
+        fill(current + step);
+        return tokens.line(current + step);
+    }
+
+    private TokenType type(int step) {
+        fill(current + step);
+        return tokens.type(current + step);
+    }
+
+    private void fill(int index) {
+        while (lexer != null && index >= tokens.size()) lexer.next();
     }
 }
@@ -0,0 +1,184 @@
+package jlack;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Counts and times every statement the tree-walker runs, for --profile.
+// A statement's total time includes the statements it ran and its self
+// time doesn't. Blocks aren't statements of their own here, what they run
+// is counted under the if or loop they belong to, and a hot loop that went
+// to the loop compiler keeps its remaining passes as its own self time.
+final class Profiler {
+    // how many lines and loops the report lists
+    private static final int TOP = 10;
+
+    private static final class Entry {
+        final Stmt stmt;
+        // the statement this one runs in, null at the top level
+        final Entry parent;
+        long count = 0;
+        long total = 0;
+        long self = 0;
+        // passes the tree-walker made, for a loop
+        long passes = 0;
+        boolean compiled = false;
+
+        Entry(Stmt stmt, Entry parent) {
+            this.stmt = stmt;
+            this.parent = parent;
+        }
+    }
+
+    private static final class Line {
+        final int line;
+        // the statement on the line that took longest, which names it
+        Entry longest = null;
+        long count = 0;
+        long total = 0;
+        long self = 0;
+
+        Line(int line) {
+            this.line = line;
+        }
+    }
+
+    private final Map<Stmt, Entry> entries = new IdentityHashMap<>();
+    // the statements running now, innermost last, and the time their
+    // children have taken so far
+    private Entry[] running = new Entry[16];
+    private long[] children = new long[16];
+    private int depth = 0;
+
+    int execute(Interpreter interpreter, Stmt stmt) {
+        Entry entry = entries.get(stmt);
+        if (entry == null) {
+            // there are no functions, so a statement only ever runs in one
+            entry = new Entry(stmt, depth == 0 ? null : running[depth-1]);
+            entries.put(stmt, entry);
+        }
+        if (depth == running.length) {
+            running = Arrays.copyOf(running, depth * 2);
+            children = Arrays.copyOf(children, depth * 2);
+        }
+        running[depth] = entry;
+        children[depth++] = 0;
+
+        long start = System.nanoTime();
+        try {
+            return stmt.accept(interpreter);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            depth--;
+            entry.count++;
+            entry.total += elapsed;
+            entry.self += elapsed - children[depth];
+            if (depth > 0) children[depth-1] += elapsed;
+        }
+    }
+
+    // the running loop starts another pass
+    void pass() {
+        running[depth-1].passes++;
+    }
+
+    // the running loop's remaining passes went to the loop compiler
+    void compiled() {
+        if (depth > 0) running[depth-1].compiled = true;
+    }
+
+    void report(PrintStream out, String script) {
+        long total = 0;
+        long count = 0;
+        Map<Integer, Line> lines = new TreeMap<>();
+        for (Entry entry : entries.values()) {
+            if (entry.parent == null) total += entry.total;
+            count += entry.count;
+
+            int line = entry.stmt.line;
+            Line stats = lines.computeIfAbsent(line, Line::new);
+            if (stats.longest == null || entry.total > stats.longest.total) stats.longest = entry;
+            stats.self += entry.self;
+            // a statement inside another on the same line is in its runs
+            // and total already
+            if (entry.parent == null || entry.parent.stmt.line != line) {
+                stats.count += entry.count;
+                stats.total += entry.total;
+            }
+        }
+
+        out.println(String.format("profile of %s: %d statements run in %s ms", script, count, millis(total)));
+        out.println("   line       runs    self ms   total ms");
+        List<Line> hotLines = new ArrayList<>(lines.values());
+        hotLines.sort(Comparator.comparingLong((Line line) -> line.self).reversed());
+        for (Line line : hotLines.subList(0, Math.min(TOP, hotLines.size()))) {
+            out.println(String.format(
+                "%7d %10d %10s %10s  %s", line.line, line.count,
+                millis(line.self), millis(line.total), kind(line.longest.stmt)
+            ));
+        }
+
+        List<Entry> loops = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (isLoop(entry.stmt)) loops.add(entry);
+        }
+        if (loops.isEmpty()) return;
+        out.println("   loop     passes   total ms");
+        loops.sort(Comparator.comparingLong((Entry entry) -> entry.total).reversed());
+        for (Entry loop : loops.subList(0, Math.min(TOP, loops.size()))) {
+            out.println(String.format(
+                "%7d %10s %10s  %s", loop.stmt.line,
+                loop.passes + (loop.compiled ? "+" : ""), millis(loop.total),
+                kind(loop.stmt) + (loop.compiled ? ", compiled" : "")
+            ));
+        }
+    }
+
+    // One line per stack of statements with its self time in microseconds,
+    // the collapsed format flame graph tools read. Frames are kind:line
+    // under a root frame for the script.
+    void writeCollapsed(Path path, String script) throws IOException {
+        Map<String, Long> stacks = new TreeMap<>();
+        for (Entry entry : entries.values()) {
+            long micros = entry.self / 1000;
+            if (micros > 0) stacks.merge(stack(entry, script), micros, Long::sum);
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+            lines.add(stack.getKey() + " " + stack.getValue());
+        }
+        Files.write(path, lines);
+    }
+
+    private static String stack(Entry entry, String script) {
+        StringBuilder frames = new StringBuilder();
+        for (Entry frame = entry; frame != null; frame = frame.parent) {
+            frames.insert(0, ";" + kind(frame.stmt) + ":" + frame.stmt.line);
+        }
+        // the separators can't be in a frame's name
+        return script.replace(';', '_').replace(' ', '_') + frames;
+    }
+
+    private static boolean isLoop(Stmt stmt) {
+        return stmt instanceof Stmt.While || stmt instanceof Stmt.RepeatUntil || stmt instanceof Stmt.RepeatFor;
+    }
+
+    // a for loop is the while it turns into
+    private static String kind(Stmt stmt) {
+        if (stmt instanceof Stmt.RepeatUntil || stmt instanceof Stmt.RepeatFor) return "repeat";
+        return stmt.getClass().getSimpleName().toLowerCase(Locale.ROOT);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,256 @@
+package jlack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final int GLOBAL = -1;
+
+    // the locals an eval can see, as they were when it was resolved
+    static final class Locals {
+        private final List<Map<Symbol, Integer>> scopes;
+
+        private Locals(List<Map<Symbol, Integer>> scopes) {
+            this.scopes = scopes;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final Lack lack;
+    private final List<Map<Symbol, Integer>> scopes = new ArrayList<>();
+    // loops around the statement being resolved
+    private int loops = 0;
+
+    Resolver(Lack lack) {
+        this.interpreter = lack.interpreter;
+        this.lack = lack;
+    }
+
+    // for an eval'd expression, which can't declare anything, so sharing
+    // the site's scopes is safe
+    Resolver(Lack lack, Locals locals) {
+        this(lack);
+        scopes.addAll(locals.scopes);
+    }
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block that declares nothing runs in the scope around it, so it
+        // gets no scope here either. Everything that walks resolved blocks
+        // takes no slots to mean no scope.
+        if (!declares(stmt)) {
+            resolve(stmt.statements);
+            stmt.slots = 0;
+            return null;
+        }
+        scopes.add(new HashMap<>());
+        resolve(stmt.statements);
+        stmt.slots = scopes.remove(scopes.size()-1).size();
+        return null;
+    }
+
+    // only a let straight inside a block declares in it
+    private static boolean declares(Stmt.Block block) {
+        for (Stmt statement : block.statements) {
+            if (statement instanceof Stmt.Let) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitWriteStmt(Stmt.Write stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReadStmt(Stmt.Read stmt) {
+        stmt.depth = depth(stmt.name);
+        stmt.slot = slot(stmt.name, stmt.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitReadNumStmt(Stmt.ReadNum stmt) {
+        stmt.depth = depth(stmt.name);
+        stmt.slot = slot(stmt.name, stmt.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitLetStmt(Stmt.Let stmt) {
+        // the initialiser still sees an outer variable of the same name
+        if (stmt.initialiser != null) resolve(stmt.initialiser);
+        stmt.slot = declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        if (stmt.condition != null) resolve(stmt.condition);
+        resolveLoop(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+        stmt.counted = CountedLoop.match(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+        resolveLoop(stmt.body);
+        resolve(stmt.condition);
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatForStmt(Stmt.RepeatFor stmt) {
+        resolve(stmt.times);
+        resolveLoop(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loops == 0) lack.error(stmt.token, "'break' must be inside a loop");
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        if (loops == 0) lack.error(stmt.token, "'continue' must be inside a loop");
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        expr.depth = depth(expr.name);
+        expr.slot = slot(expr.name, expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitXorExpr(Expr.Xor expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        expr.depth = depth(expr.name);
+        expr.slot = slot(expr.name, expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitEvalExpr(Expr.Eval expr) {
+        resolve(expr.string);
+        // later declarations in these scopes must stay out of its sight
+        List<Map<Symbol, Integer>> visible = new ArrayList<>();
+        for (Map<Symbol, Integer> scope : scopes) visible.add(new HashMap<>(scope));
+        expr.locals = new Locals(visible);
+        return null;
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // the backends count on every break and continue having a loop
+    private void resolveLoop(Stmt body) {
+        loops++;
+        resolve(body);
+        loops--;
+    }
+
+    void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private int declare(Token name) {
+        Map<Symbol, Integer> scope = scopes.isEmpty()
+            ? interpreter.globalSlots
+            : scopes.get(scopes.size()-1);
+
+        // redeclaring in the same scope reuses the slot, like the old define()
+        Integer slot = scope.get(name.symbol);
+        if (slot == null) {
+            slot = scope.size();
+            scope.put(name.symbol, slot);
+        }
+        return slot;
+    }
+
+    private int depth(Token name) {
+        for (int i = scopes.size()-1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name.symbol)) {
+                return scopes.size()-1 - i;
+            }
+        }
+        if (!interpreter.globalSlots.containsKey(name.symbol)) {
+            lack.error(name, String.format("Undefined variable '%s'", name.lexeme));
+        }
+        return GLOBAL;
+    }
+
+    private int slot(Token name, int depth) {
+        Map<Symbol, Integer> scope = depth == GLOBAL
+            ? interpreter.globalSlots
+            : scopes.get(scopes.size()-1 - depth);
+        Integer slot = scope.get(name.symbol);
+        return slot == null ? 0 : slot;
+    }
+}
@@ -0,0 +1,103 @@
+package jlack;
+
+// A long string made by + or *, kept as its parts until something needs
+// the characters: printing, comparing, eval or a snapshot. Short results
+// stay plain Strings, so a Rope is never empty and always truthy.
+//
+// Appending to a rope extends its builder in place and the new rope sees
+// more of it. The old rope still sees only its own prefix, and the first
+// rope to append to a builder someone else already extended copies it, so
+// s = s + x in a loop is linear and every value stays immutable.
+final class Rope implements CharSequence {
+    // shortest + or * result that is built as a rope
+    static final int MIN_LENGTH = 64;
+
+    private final int length;
+    // the first length chars are this rope's, more may belong to later ones
+    private final StringBuilder builder;
+    // or unit repeated count times, for a rope made by * and not yet needed
+    private final String unit;
+    private final int count;
+    private String flat;
+
+    private Rope(StringBuilder builder, int length) {
+        this.builder = builder;
+        this.length = length;
+        this.unit = null;
+        this.count = 0;
+    }
+
+    private Rope(String unit, int count) {
+        this.builder = null;
+        this.length = unit.length() * count;
+        this.unit = unit;
+        this.count = count;
+    }
+
+    // left + right for two strings
+    static Object concat(CharSequence left, CharSequence right) {
+        if (left instanceof Rope) return ((Rope)left).append(right);
+        int length = checkedLength(left.length(), right.length());
+        if (length < MIN_LENGTH) return (String)left + (String)right;
+
+        StringBuilder builder = new StringBuilder(length * 2);
+        builder.append((String)left).append(right.toString());
+        return new Rope(builder, length);
+    }
+
+    // string * count, which String.repeat already checked for small results
+    static Object repeat(CharSequence string, int count) {
+        String unit = string.toString();
+        long length = (long)unit.length() * count;
+        // String.repeat throws for a negative count or a result too long
+        if (length < MIN_LENGTH || length > Integer.MAX_VALUE) return unit.repeat(count);
+        if (count == 1) return string;
+        return new Rope(unit, count);
+    }
+
+    // the value as it would be without ropes
+    static Object flatten(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    private Rope append(CharSequence tail) {
+        int total = checkedLength(length, tail.length());
+        StringBuilder builder = this.builder;
+        if (builder == null || builder.length() != length) {
+            // a repetition, or a later rope already took the builder
+            builder = new StringBuilder(total * 2).append(toString());
+        }
+        builder.append(tail.toString());
+        return new Rope(builder, total);
+    }
+
+    private static int checkedLength(int a, int b) {
+        int length = a + b;
+        // the same error String concatenation gives
+        if (length < 0) throw new OutOfMemoryError("Overflow: String length out of range");
+        return length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = builder != null ? builder.substring(0, length) : unit.repeat(count);
+        }
+        return flat;
+    }
+}
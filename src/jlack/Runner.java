@@ -0,0 +1,152 @@
+package jlack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs scripts concurrently in one JVM. Each job gets its own Lack, so its
+// own interpreter, globals, error flags, input and output; only the command
+// line options are shared between them.
+//
+// On a JDK with virtual threads every job gets one, and they share as many
+// carrier threads as the runner was given. A script only lets go of its
+// carrier when it blocks or its Budget yields, so a budget or timeout is
+// what keeps one endless loop from starving the rest.
+public class Runner {
+    static class Job {
+        final String path;
+        final InputStream input;
+        final OutputStream output;
+        final PrintStream err;
+
+        Job(String path, InputStream input, OutputStream output, PrintStream err) {
+            this.path = path;
+            this.input = input;
+            this.output = output;
+            this.err = err;
+        }
+    }
+
+    static class Result {
+        final Job job;
+        // what jlack would have exited with running the script on its own
+        final int status;
+        final long nanos;
+
+        Result(Job job, int status, long nanos) {
+            this.job = job;
+            this.status = status;
+            this.nanos = nanos;
+        }
+    }
+
+    private final ExecutorService pool;
+
+    Runner(int threads) {
+        ExecutorService virtual = virtualThreads(threads);
+        this.pool = virtual != null ? virtual : Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "jlack-runner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // A thread per job on carriers carriers, or null before JDK 21, which
+    // gets a pool of platform threads instead. Looked up reflectively so
+    // jlack still builds for 17. The carrier count only takes if no virtual
+    // thread has been started yet.
+    private static ExecutorService virtualThreads(int carriers) {
+        Method factory;
+        try {
+            factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException error) {
+            return null;
+        }
+        System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(carriers));
+        try {
+            return (ExecutorService)factory.invoke(null);
+        } catch (ReflectiveOperationException error) {
+            // a preview API on 19 and 20 that throws unless enabled
+            return null;
+        }
+    }
+
+    Future<Result> submit(Job job) {
+        return pool.submit(() -> run(job));
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    static Result run(Job job) {
+        long start = System.nanoTime();
+        Output output = new Output(Channels.newChannel(job.output), Charset.defaultCharset());
+        Input input = new Input(Channels.newChannel(job.input), Charset.defaultCharset());
+        Lack lack = new Lack(new Interpreter(input, output), job.err);
+
+        int status;
+        try {
+            status = lack.runFile(job.path);
+        } catch (IOException error) {
+            job.err.println(String.format("Could not read %s: %s", job.path, error));
+            status = 74;
+        }
+        return new Result(job, status, System.nanoTime() - start);
+    }
+
+    // Runs the scripts given on the command line. Their input is empty, and
+    // what each one prints is held back and written out in the order they
+    // were given, followed by its status and time on stderr.
+    static int runScripts(List<String> paths, int threads) {
+        Runner runner = new Runner(threads);
+        List<Future<Result>> results = new ArrayList<>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        List<ByteArrayOutputStream> errors = new ArrayList<>();
+        for (String path : paths) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            outputs.add(output);
+            errors.add(error);
+            results.add(runner.submit(
+                new Job(path, InputStream.nullInputStream(), output, new PrintStream(error, true))
+            ));
+        }
+
+        int status = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            String report;
+            int code;
+            try {
+                Result result = results.get(i).get();
+                code = result.status;
+                report = String.format("%s: exit %d in %.1fms", paths.get(i), code, result.nanos / 1e6);
+            } catch (ExecutionException error) {
+                code = 70;
+                report = String.format("%s: failed with %s", paths.get(i), error.getCause());
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            System.out.write(outputs.get(i).toByteArray(), 0, outputs.get(i).size());
+            System.out.flush();
+            System.err.write(errors.get(i).toByteArray(), 0, errors.get(i).size());
+            System.err.println(report);
+            status = Math.max(status, code);
+        }
+        runner.shutdown();
+        return status;
+    }
+}
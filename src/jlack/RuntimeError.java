@@ -7,4 +7,9 @@ public class RuntimeError extends RuntimeException {
         super(msg);
         this.token = token;
     }
+
+    // for an error with no token of its own, only a line to report
+    RuntimeError(int line, String msg) {
+        this(new Token(TokenType.EOF, "", null, line), msg);
+    }
 }
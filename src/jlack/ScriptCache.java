@@ -0,0 +1,524 @@
+package jlack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Parsed scripts saved in a compact binary form, so a script that hasn't
+// changed skips the lexer and parser. An entry is keyed by a hash of the
+// source, the charset it was read with and VERSION; anything that doesn't
+// match, or doesn't read back cleanly, is treated as a miss.
+final class ScriptCache {
+    // bump whenever Expr, Stmt or the layout below changes
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x4a4c4b43; // "JLKC"
+
+    private static final byte NONE = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte BINARY = 2;
+    private static final byte GROUPING = 3;
+    private static final byte LITERAL = 4;
+    private static final byte UNARY = 5;
+    private static final byte LOGICAL = 6;
+    private static final byte XOR = 7;
+    private static final byte VARIABLE = 8;
+    private static final byte EVAL = 9;
+    private static final byte BLOCK = 10;
+    private static final byte EXPRESSION = 11;
+    private static final byte WRITE = 12;
+    private static final byte READ = 13;
+    private static final byte READ_NUM = 14;
+    private static final byte LET = 15;
+    private static final byte IF = 16;
+    private static final byte WHILE = 17;
+    private static final byte REPEAT_UNTIL = 18;
+    private static final byte REPEAT_FOR = 19;
+    private static final byte BREAK = 20;
+    private static final byte CONTINUE = 21;
+
+    // literal values
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // where entries go, null to keep each one next to its script
+    private final Path directory;
+
+    ScriptCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // the script's statements as they were parsed, null on a miss
+    List<Stmt> load(Path script, byte[] source, Charset charset, SymbolTable symbols) {
+        byte[] key = key(source, charset);
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(entry(script, key)));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            byte[] hash = new byte[key.length];
+            in.get(hash);
+            if (!MessageDigest.isEqual(hash, key)) return null;
+            int checksum = in.getInt();
+            if (checksum != checksum(in.slice())) return null;
+            return new Reader(in, symbols).program();
+        } catch (IOException | RuntimeException error) {
+            // missing, stale or damaged, parsing again is always safe
+            return null;
+        }
+    }
+
+    void store(Path script, byte[] source, Charset charset, List<Stmt> statements) {
+        byte[] key = key(source, charset);
+        try {
+            Writer writer = new Writer();
+            writer.statements(statements);
+
+            // written aside and moved in whole, so a concurrent run never
+            // reads half an entry
+            Path entry = entry(script, key);
+            if (entry.getParent() != null) Files.createDirectories(entry.getParent());
+            Path temp = entry.resolveSibling(String.format("%s.%d.%d.tmp",
+                entry.getFileName(), ProcessHandle.current().pid(), Thread.currentThread().getId()));
+            try {
+                Files.write(temp, writer.entry(key));
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | RuntimeException error) {
+            // pass, the next run just parses again
+        }
+    }
+
+    private Path entry(Path script, byte[] key) {
+        if (directory == null) return script.resolveSibling(script.getFileName() + "c");
+
+        StringBuilder name = new StringBuilder();
+        for (byte b : key) name.append(String.format("%02x", b));
+        return directory.resolve(name.append(".lkc").toString());
+    }
+
+    static int checksum(ByteBuffer bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int)crc.getValue();
+    }
+
+    // UTF-8 behind its length, how the cache and snapshots store strings
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] encoded = new byte[in.getInt()];
+        in.get(encoded);
+        // '' has to come back as the interned "" to stay falsy
+        return encoded.length == 0 ? "" : new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    static byte[] key(byte[] source, Charset charset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(4).putInt(0, VERSION));
+            digest.update(charset.name().getBytes(StandardCharsets.US_ASCII));
+            digest.update(source);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException error) {
+            // every JDK has to provide SHA-256
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Writes the tree depth first, a tag byte per node. Every string goes in
+    // a table written ahead of the tree, so repeated names are stored once.
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(tree);
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        void statements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) write(statement);
+        }
+
+        // the header, then the string table and the tree written so far
+        // under a checksum, as the key only says which source it came from
+        byte[] entry(byte[] key) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(body);
+            data.writeInt(strings.size());
+            for (String string : strings) writeString(data, string);
+            tree.writeTo(data);
+            byte[] bytes = body.toByteArray();
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            data = new DataOutputStream(file);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.write(key);
+            data.writeInt(checksum(ByteBuffer.wrap(bytes)));
+            data.write(bytes);
+            return file.toByteArray();
+        }
+
+        private void write(Stmt stmt) {
+            if (stmt == null) {
+                tag(NONE);
+            } else {
+                stmt.accept(this);
+                writeInt(stmt.line);
+            }
+        }
+
+        private void write(Expr expr) {
+            if (expr == null) {
+                tag(NONE);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void tag(byte tag) {
+            writeByte(tag);
+        }
+
+        private void token(Token token) {
+            writeByte(token.type.ordinal());
+            writeInt(token.line);
+            writeInt(string(token.lexeme));
+        }
+
+        // The visitors can't throw IOException, which writing to memory
+        // never does anyway. DataOutputStream is big-endian, the way
+        // ByteBuffer reads them back.
+        private void writeByte(int value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        private void writeLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        private int string(String string) {
+            Integer index = indices.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                indices.put(string, index);
+            }
+            return index;
+        }
+
+        private void value(Object value) {
+            if (value == null) {
+                tag(NIL);
+            } else if (value instanceof Boolean) {
+                tag((boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                tag(NUMBER);
+                writeLong(Double.doubleToRawLongBits((double)value));
+            } else {
+                tag(STRING);
+                writeInt(string((String)value));
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            write(expr.left);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            write(expr.left);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitXorExpr(Expr.Xor expr) {
+            tag(XOR);
+            write(expr.left);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitEvalExpr(Expr.Eval expr) {
+            tag(EVAL);
+            write(expr.string);
+            token(expr.token);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitWriteStmt(Stmt.Write stmt) {
+            tag(WRITE);
+            write(stmt.expression);
+            value(stmt.end);
+            return null;
+        }
+
+        @Override
+        public Void visitReadStmt(Stmt.Read stmt) {
+            tag(READ);
+            token(stmt.name);
+            token(stmt.token);
+            return null;
+        }
+
+        @Override
+        public Void visitReadNumStmt(Stmt.ReadNum stmt) {
+            tag(READ_NUM);
+            token(stmt.name);
+            token(stmt.token);
+            return null;
+        }
+
+        @Override
+        public Void visitLetStmt(Stmt.Let stmt) {
+            tag(LET);
+            token(stmt.name);
+            write(stmt.initialiser);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            write(stmt.increment);
+            return null;
+        }
+
+        @Override
+        public Void visitRepeatUntilStmt(Stmt.RepeatUntil stmt) {
+            tag(REPEAT_UNTIL);
+            write(stmt.condition);
+            write(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitRepeatForStmt(Stmt.RepeatFor stmt) {
+            tag(REPEAT_FOR);
+            write(stmt.times);
+            write(stmt.body);
+            token(stmt.forToken);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            tag(BREAK);
+            token(stmt.token);
+            return null;
+        }
+
+        @Override
+        public Void visitContinueStmt(Stmt.Continue stmt) {
+            tag(CONTINUE);
+            token(stmt.token);
+            return null;
+        }
+    }
+
+    // Reads a tree back straight out of the entry's bytes. Names are
+    // interned again, so the tree resolves like a freshly parsed one.
+    private static class Reader {
+        private final ByteBuffer in;
+        private final SymbolTable symbols;
+        private final String[] strings;
+
+        Reader(ByteBuffer in, SymbolTable symbols) {
+            this.in = in;
+            this.symbols = symbols;
+            this.strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) strings[i] = readString(in);
+        }
+
+        List<Stmt> program() {
+            List<Stmt> statements = statements();
+            if (in.hasRemaining()) throw new IllegalStateException("Trailing bytes");
+            return statements;
+        }
+
+        private List<Stmt> statements() {
+            int count = in.getInt();
+            List<Stmt> statements = new ArrayList<>(Math.min(count, in.remaining()));
+            for (int i = 0; i < count; i++) statements.add(stmt());
+            return statements;
+        }
+
+        // a statement is followed by the line it starts on
+        private Stmt stmt() {
+            Stmt stmt = statement();
+            if (stmt != null) stmt.line = in.getInt();
+            return stmt;
+        }
+
+        private Stmt statement() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE: return null;
+                case BLOCK: return new Stmt.Block(statements());
+                case EXPRESSION: return new Stmt.Expression(expr());
+                case WRITE: return new Stmt.Write(expr(), (String)value());
+                case READ: return new Stmt.Read(token(), token());
+                case READ_NUM: return new Stmt.ReadNum(token(), token());
+                case LET: return new Stmt.Let(token(), expr());
+                case IF: return new Stmt.If(expr(), stmt(), stmt());
+                case WHILE: return new Stmt.While(expr(), stmt(), expr());
+                case REPEAT_UNTIL: return new Stmt.RepeatUntil(expr(), stmt());
+                case REPEAT_FOR: return new Stmt.RepeatFor(expr(), stmt(), token());
+                case BREAK: return new Stmt.Break(token());
+                case CONTINUE: return new Stmt.Continue(token());
+                default: throw new IllegalStateException("Unknown statement " + tag);
+            }
+        }
+
+        private Expr expr() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE: return null;
+                case ASSIGN: return new Expr.Assign(token(), expr());
+                case BINARY: return new Expr.Binary(expr(), token(), expr());
+                case GROUPING: return new Expr.Grouping(expr());
+                case LITERAL: return new Expr.Literal(value());
+                case UNARY: return new Expr.Unary(token(), expr());
+                case LOGICAL: return new Expr.Logical(expr(), token(), expr());
+                case XOR: return new Expr.Xor(expr(), token(), expr());
+                case VARIABLE: return new Expr.Variable(token());
+                case EVAL: return new Expr.Eval(expr(), token());
+                default: throw new IllegalStateException("Unknown expression " + tag);
+            }
+        }
+
+        private Token token() {
+            TokenType type = TYPES[in.get()];
+            int line = in.getInt();
+            String lexeme = strings[in.getInt()];
+            if (type == TokenType.IDENTIFIER) {
+                Symbol symbol = symbols.intern(lexeme);
+                return new Token(type, symbol.name, null, line, symbol);
+            }
+            return new Token(type, lexeme, null, line);
+        }
+
+        private Object value() {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return in.getDouble();
+                case STRING: return strings[in.getInt()];
+                default: throw new IllegalStateException("Unknown value " + tag);
+            }
+        }
+    }
+}
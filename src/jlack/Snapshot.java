@@ -0,0 +1,150 @@
+package jlack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Map;
+
+// The globals a prelude leaves behind, so later runs can start from them
+// instead of running it again. Every value a script can hold is a number,
+// string, boolean or nil, so the globals are all there is to save.
+final class Snapshot {
+    // bump whenever the layout below changes
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x4a4c4b53; // "JLKS"
+
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    // an empty string that isn't the interned "", which is truthy
+    private static final byte NEW_EMPTY = 5;
+
+    // in slot order, so restoring into a fresh interpreter keeps the slots
+    private final String[] names;
+    private final Object[] values;
+
+    private Snapshot(String[] names, Object[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    static Snapshot capture(Interpreter interpreter) {
+        int count = interpreter.globalSlots.size();
+        String[] names = new String[count];
+        Object[] values = new Object[count];
+        for (Map.Entry<Symbol, Integer> global : interpreter.globalSlots.entrySet()) {
+            int slot = global.getValue();
+            names[slot] = global.getKey().name;
+            // restored into interpreters on other threads, which mustn't
+            // append to one rope's builder together
+            values[slot] = slot < interpreter.globals.values.length ? Rope.flatten(interpreter.globals.values[slot]) : null;
+        }
+        return new Snapshot(names, values);
+    }
+
+    // values are immutable, so one snapshot can be restored into any
+    // number of interpreters
+    void restore(Interpreter interpreter) {
+        for (int i = 0; i < names.length; i++) {
+            Symbol name = interpreter.symbols.intern(names[i]);
+            Integer slot = interpreter.globalSlots.get(name);
+            if (slot == null) {
+                slot = interpreter.globalSlots.size();
+                interpreter.globalSlots.put(name, slot);
+            }
+            interpreter.globals.reserve(slot + 1);
+            interpreter.globals.values[slot] = values[i];
+        }
+    }
+
+    // the snapshot in path, null if it's missing, damaged or was taken of
+    // a prelude other than the one key was made from; a null key takes any
+    static Snapshot read(Path path, byte[] key) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            byte[] hash = new byte[in.getInt()];
+            in.get(hash);
+            if (key != null && !MessageDigest.isEqual(hash, key)) return null;
+            int checksum = in.getInt();
+            if (checksum != ScriptCache.checksum(in.slice())) return null;
+
+            int count = in.getInt();
+            String[] names = new String[count];
+            Object[] values = new Object[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = ScriptCache.readString(in);
+                values[i] = value(in);
+            }
+            if (in.hasRemaining()) return null;
+            return new Snapshot(names, values);
+        } catch (IOException | RuntimeException error) {
+            return null;
+        }
+    }
+
+    void write(Path path, byte[] key) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            ScriptCache.writeString(out, names[i]);
+            value(out, values[i]);
+        }
+        byte[] bytes = body.toByteArray();
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        out = new DataOutputStream(file);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(ScriptCache.checksum(ByteBuffer.wrap(bytes)));
+        out.write(bytes);
+
+        // moved in whole, so a run starting meanwhile sees the old one or this
+        Path temp = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.write(temp, file.toByteArray());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void value(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NIL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((boolean)value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.writeByte(NUMBER);
+            out.writeDouble((double)value);
+        } else if (((String)value).isEmpty() && value != "") {
+            out.writeByte(NEW_EMPTY);
+        } else {
+            out.writeByte(STRING);
+            ScriptCache.writeString(out, (String)value);
+        }
+    }
+
+    private static Object value(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NIL: return null;
+            case TRUE: return true;
+            case FALSE: return false;
+            case NUMBER: return in.getDouble();
+            case STRING: return ScriptCache.readString(in);
+            case NEW_EMPTY: return new String();
+            default: throw new IllegalStateException("Unknown value " + tag);
+        }
+    }
+}
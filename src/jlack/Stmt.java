@@ -1,4 +1,4 @@
-//tool/GenerateAst.java
+//tool/GenerateAst.java
 package jlack;
 
 import java.util.List;
@@ -29,6 +29,7 @@ abstract class Stmt {
     }
 
         final List<Stmt> statements;
+        int slots;
     }
     static class Expression extends Stmt {
         Expression(Expr expression) {
@@ -69,6 +70,8 @@ abstract class Stmt {
 
         final Token name;
         final Token token;
+        int depth;
+        int slot;
     }
     static class ReadNum extends Stmt {
         ReadNum(Token name, Token token) {
@@ -83,6 +86,8 @@ abstract class Stmt {
 
         final Token name;
         final Token token;
+        int depth;
+        int slot;
     }
     static class Let extends Stmt {
         Let(Token name, Expr initialiser) {
@@ -97,6 +102,7 @@ abstract class Stmt {
 
         final Token name;
         final Expr initialiser;
+        int slot;
     }
     static class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -129,6 +135,7 @@ abstract class Stmt {
         final Expr condition;
         final Stmt body;
         final Expr increment;
+        CountedLoop counted;
     }
     static class RepeatUntil extends Stmt {
         RepeatUntil(Expr condition, Stmt body) {
@@ -185,5 +192,7 @@ abstract class Stmt {
         final Token token;
     }
 
+    int line;
+
     abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,309 @@
+package jlack;
+
+abstract class StmtNode extends Node {
+    // how a statement finished, loops stop or skip ahead on the last two
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int CONTINUE = 2;
+
+    abstract int execute(Interpreter interpreter);
+
+    static class Sequence extends StmtNode {
+        private final StmtNode[] statements;
+
+        Sequence(StmtNode[] statements) {
+            this.statements = statements;
+            for (StmtNode statement : statements) adopt(statement);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            for (StmtNode statement : statements) {
+                int completion = statement.execute(interpreter);
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        }
+    }
+
+    static class Block extends StmtNode {
+        private final StmtNode[] statements;
+        private final int slots;
+        // the frame of the last run, reused while the block keeps running
+        // in the same Env, as a loop body does
+        private Env frame;
+
+        Block(StmtNode[] statements, int slots) {
+            this.statements = statements;
+            this.slots = slots;
+            for (StmtNode statement : statements) adopt(statement);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            Env previous = interpreter.env;
+            try {
+                if (frame == null || frame.enclosing != previous) {
+                    frame = new Env(previous, slots);
+                    interpreter.envsAllocated++;
+                }
+                interpreter.env = frame;
+                for (StmtNode statement : statements) {
+                    int completion = statement.execute(interpreter);
+                    if (completion != NORMAL) return completion;
+                }
+                return NORMAL;
+            } finally {
+                interpreter.env = previous;
+            }
+        }
+    }
+
+    static class Expression extends StmtNode {
+        private ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            expression.execute(interpreter);
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (expression == old) expression = (ExprNode)replacement;
+        }
+    }
+
+    static class Write extends StmtNode {
+        private ExprNode expression;
+        private final String end;
+
+        Write(ExprNode expression, String end) {
+            this.expression = adopt(expression);
+            this.end = end;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            interpreter.write(expression.execute(interpreter), end);
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (expression == old) expression = (ExprNode)replacement;
+        }
+    }
+
+    static class Read extends StmtNode {
+        private final Token name;
+        private final Token token;
+        private final boolean isNum;
+        private final int depth;
+        private final int slot;
+
+        Read(Token name, Token token, boolean isNum, int depth, int slot) {
+            this.name = name;
+            this.token = token;
+            this.isNum = isNum;
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            Object val = interpreter.getUserInput(isNum, token);
+            if (depth == Resolver.GLOBAL) {
+                Object[] globals = interpreter.globals.values;
+                if (globals[slot] == Env.UNDEFINED) throw Env.undefined(name);
+                globals[slot] = val;
+            } else {
+                interpreter.env.assign(depth, slot, val);
+            }
+            return NORMAL;
+        }
+    }
+
+    static class Let extends StmtNode {
+        private ExprNode initialiser;
+        private final int slot;
+
+        Let(ExprNode initialiser, int slot) {
+            this.initialiser = adopt(initialiser);
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            Object val = initialiser == null ? null : initialiser.execute(interpreter);
+            interpreter.env.define(slot, val);
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (initialiser == old) initialiser = (ExprNode)replacement;
+        }
+    }
+
+    static class If extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = adopt(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            if (Interpreter.isTruthy(condition.execute(interpreter))) {
+                return thenBranch.execute(interpreter);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(interpreter);
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (condition == old) condition = (ExprNode)replacement;
+        }
+    }
+
+    static class While extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode body;
+        private ExprNode increment;
+        private final CountedLoop counted;
+        private final int line;
+
+        While(ExprNode condition, StmtNode body, ExprNode increment, CountedLoop counted, int line) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+            this.increment = adopt(increment);
+            this.counted = counted;
+            this.line = line;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            if (counted != null && executeCounted(interpreter)) return NORMAL;
+            Budget budget = interpreter.budget;
+            while (condition == null || Interpreter.isTruthy(condition.execute(interpreter))) {
+                if (budget != null) budget.pass(line);
+                if (body.execute(interpreter) == BREAK) break;
+                if (increment != null) increment.execute(interpreter);
+            }
+            return NORMAL;
+        }
+
+        // the variable stays in a double, see CountedLoop
+        private boolean executeCounted(Interpreter interpreter) {
+            Object[] frame = counted.frame(interpreter);
+            Object start = frame[counted.slot];
+            Object limit = counted.limit(interpreter);
+            if (!(start instanceof Double) || !(limit instanceof Double)) return false;
+
+            double value = (double)start;
+            double end = (double)limit;
+            Budget budget = interpreter.budget;
+            try {
+                while (counted.test(value, end)) {
+                    if (budget != null) budget.pass(line);
+                    if (counted.reads) frame[counted.slot] = value;
+                    if (body.execute(interpreter) == BREAK) break;
+                    value += counted.step;
+                }
+            } finally {
+                frame[counted.slot] = value;
+            }
+            return true;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (condition == old) condition = (ExprNode)replacement;
+            if (increment == old) increment = (ExprNode)replacement;
+        }
+    }
+
+    static class RepeatUntil extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode body;
+        private final int line;
+
+        RepeatUntil(ExprNode condition, StmtNode body, int line) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+            this.line = line;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            Budget budget = interpreter.budget;
+            do {
+                if (budget != null) budget.pass(line);
+                if (body.execute(interpreter) == BREAK) break;
+            } while (!Interpreter.isTruthy(condition.execute(interpreter)));
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (condition == old) condition = (ExprNode)replacement;
+        }
+    }
+
+    static class RepeatFor extends StmtNode {
+        private ExprNode times;
+        private final StmtNode body;
+        private final Token forToken;
+        private final int line;
+
+        RepeatFor(ExprNode times, StmtNode body, Token forToken, int line) {
+            this.times = adopt(times);
+            this.body = adopt(body);
+            this.forToken = forToken;
+            this.line = line;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            Object n = times.execute(interpreter);
+            if (!(n instanceof Double) || (double)n % 1 != 0) {
+                throw new RuntimeError(forToken, "Expected integer after 'for'");
+            }
+            Budget budget = interpreter.budget;
+            for (double i = (double)n; i > 0; i--) {
+                if (budget != null) budget.pass(line);
+                if (body.execute(interpreter) == BREAK) break;
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (times == old) times = (ExprNode)replacement;
+        }
+    }
+
+    static class Jump extends StmtNode {
+        private final int completion;
+
+        Jump(int completion) {
+            this.completion = completion;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            return completion;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package jlack;
+
+// One per distinct name. The table hands out the same Symbol every time a
+// name is seen, so maps keyed on it compare by identity.
+final class Symbol {
+    final String name;
+    // IDENTIFIER, or the keyword this name spells
+    final TokenType type;
+    private final int hash;
+
+    Symbol(String name, TokenType type, int hash) {
+        this.name = name;
+        this.type = type;
+        this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,106 @@
+package jlack;
+
+import static jlack.TokenType.*;
+
+// Interns names straight out of the source. A name is hashed and compared
+// in place, so only the first occurrence of it becomes a string.
+final class SymbolTable {
+    private Symbol[] table = new Symbol[256];
+    private int count = 0;
+
+    SymbolTable() {
+        keyword("write", WRITE);
+        keyword("writeln", WRITELN);
+        keyword("read", READ);
+        keyword("readnum", READNUM);
+        keyword("eval", EVAL);
+        keyword("let", LET);
+        keyword("true", TRUE);
+        keyword("false", FALSE);
+        keyword("nil", NIL);
+        keyword("if", IF);
+        keyword("else", ELSE);
+        keyword("not", NOT);
+        keyword("or", OR);
+        keyword("and", AND);
+        keyword("xor", XOR);
+        keyword("nor", NOR);
+        keyword("nand", NAND);
+        keyword("xnor", XNOR);
+        keyword("for", FOR);
+        keyword("while", WHILE);
+        keyword("repeat", REPEAT);
+        keyword("until", UNTIL);
+        keyword("break", BREAK);
+        keyword("continue", CONTINUE);
+        keyword("fun", FUN);
+        keyword("return", RETURN);
+        keyword("class", CLASS);
+        keyword("this", THIS);
+        keyword("super", SUPER);
+    }
+
+    Symbol intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    Symbol intern(CharSequence source, int start, int end) {
+        // the same hash String uses, names are ASCII so the chars are the bytes
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            Symbol symbol = table[i];
+            if (symbol == null) {
+                return add(source.subSequence(start, end).toString(), hash, IDENTIFIER, i);
+            }
+            if (symbol.hashCode() == hash && matches(symbol.name, source, start, end)) {
+                return symbol;
+            }
+        }
+    }
+
+    private void keyword(String name, TokenType type) {
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        int i = spread(hash) & mask;
+        while (table[i] != null) i = (i + 1) & mask;
+        add(name, hash, type, i);
+    }
+
+    private Symbol add(String name, int hash, TokenType type, int index) {
+        Symbol symbol = new Symbol(name, type, hash);
+        table[index] = symbol;
+        count++;
+        // keep the table at most half full so probes stay short
+        if (count * 2 > table.length) rehash();
+        return symbol;
+    }
+
+    private void rehash() {
+        Symbol[] old = table;
+        table = new Symbol[old.length * 2];
+        int mask = table.length - 1;
+        for (Symbol symbol : old) {
+            if (symbol == null) continue;
+            int i = spread(symbol.hashCode()) & mask;
+            while (table[i] != null) i = (i + 1) & mask;
+            table[i] = symbol;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, CharSequence source, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+}
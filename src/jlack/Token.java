@@ -5,12 +5,19 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // the interned name, for identifiers
+    final Symbol symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, null);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, Symbol symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString() {
@@ -0,0 +1,140 @@
+package jlack;
+
+import java.util.Arrays;
+
+// Tokens stored as parallel arrays instead of one object each. Lexemes and
+// literals stay in the source until the parser asks for a Token to keep in
+// the tree, so punctuation and keywords never become objects at all.
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    // operators and keywords always have the same text, so they share it
+    private static final String[] LEXEMES = new String[TYPES.length];
+    static {
+        for (TokenType type : TYPES) LEXEMES[type.ordinal()] = fixedLexeme(type);
+    }
+
+    private final CharSequence source;
+    private byte[] types = new byte[256];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private int[] lines = new int[256];
+    // the value of each NUMBER, unboxed
+    private double[] numbers = new double[256];
+    // the interned name of each IDENTIFIER or keyword
+    private Symbol[] symbols = new Symbol[256];
+    private int count = 0;
+
+    TokenBuffer(CharSequence source) {
+        this.source = source;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) grow();
+        types[count] = (byte)type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    void addNumber(int start, int length, int line, double value) {
+        add(TokenType.NUMBER, start, length, line);
+        numbers[count-1] = value;
+    }
+
+    void addSymbol(int start, int length, int line, Symbol symbol) {
+        add(symbol.type, start, length, line);
+        symbols[count-1] = symbol;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    Token token(int index) {
+        if (type(index) == TokenType.IDENTIFIER) {
+            Symbol symbol = symbols[index];
+            return new Token(TokenType.IDENTIFIER, symbol.name, null, lines[index], symbol);
+        }
+        String lexeme = LEXEMES[types[index]];
+        if (lexeme == null) {
+            lexeme = source.subSequence(starts[index], starts[index] + lengths[index]).toString();
+        }
+        return new Token(type(index), lexeme, literal(index), lines[index]);
+    }
+
+    Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER: return numbers[index];
+            case STRING: return source.subSequence(starts[index]+1, starts[index]+lengths[index]-1).toString();
+            default: return null;
+        }
+    }
+
+    // a guess at the token count, to skip most of the copying while lexing
+    void reserve(int capacity) {
+        if (capacity > types.length) resize(capacity);
+    }
+
+    // drops the first n tokens once a streaming parser is done with them
+    void discard(int n) {
+        count -= n;
+        System.arraycopy(types, n, types, 0, count);
+        System.arraycopy(starts, n, starts, 0, count);
+        System.arraycopy(lengths, n, lengths, 0, count);
+        System.arraycopy(lines, n, lines, 0, count);
+        System.arraycopy(numbers, n, numbers, 0, count);
+        System.arraycopy(symbols, n, symbols, 0, count);
+    }
+
+    private void grow() {
+        resize(types.length * 2);
+    }
+
+    private void resize(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        symbols = Arrays.copyOf(symbols, capacity);
+    }
+
+    private static String fixedLexeme(TokenType type) {
+        switch (type) {
+            case LEFT_PAREN: return "(";
+            case RIGHT_PAREN: return ")";
+            case LEFT_CURLY: return "{";
+            case RIGHT_CURLY: return "}";
+            case PLUS: return "+";
+            case MINUS: return "-";
+            case STAR: return "*";
+            case SLASH: return "/";
+            case MODULO: return "%";
+            case DOT: return ".";
+            case COMMA: return ",";
+            case SEMICOLON: return ";";
+            case BANG_EQUAL: return "!=";
+            case EQUAL: return "=";
+            case EQUAL_EQUAL: return "==";
+            case LESS: return "<";
+            case LESS_EQUAL: return "<=";
+            case GREATER: return ">";
+            case GREATER_EQUAL: return ">=";
+            case IDENTIFIER:
+            case STRING:
+            case NUMBER:
+                return null;
+            case EOF: return "";
+            default: return type.name().toLowerCase(); // keywords
+        }
+    }
+}
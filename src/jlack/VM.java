@@ -0,0 +1,347 @@
+package jlack;
+
+import static jlack.Chunk.*;
+
+class VM {
+    private final Interpreter interpreter;
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void interpret(Chunk chunk) {
+        interpreter.globals.reserve(interpreter.globalSlots.size());
+        run(chunk, new long[chunk.registers], new Object[chunk.registers]);
+    }
+
+    // Runs until RETURN and gives back what is left on top of the stack.
+    // The stack and registers hold Values, each with an Object[] beside it
+    // for the strings. Only globals are stored boxed, since the tree-walker
+    // and snapshots share them.
+    private Object run(Chunk chunk, long[] registers, Object[] registerRefs) {
+        Object[] globals = interpreter.globals.values;
+        Budget budget = interpreter.budget;
+        Object[] constants = chunk.constants.toArray();
+        long[] values = new long[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            values[i] = Value.encode(constants[i]);
+        }
+        long[] stack = new long[chunk.maxStack];
+        Object[] refs = new Object[chunk.maxStack];
+        int[] code = chunk.code;
+        int sp = 0;
+        int pc = 0;
+
+        for (;;) {
+            switch (code[pc++]) {
+                case CONSTANT: {
+                    int index = code[pc++];
+                    stack[sp] = values[index];
+                    refs[sp++] = constants[index];
+                    break;
+                }
+                case NIL:
+                    stack[sp++] = Value.NIL;
+                    break;
+                case TRUE:
+                    stack[sp++] = Value.TRUE;
+                    break;
+                case FALSE:
+                    stack[sp++] = Value.FALSE;
+                    break;
+                case POP:
+                    sp--;
+                    break;
+                case GET_GLOBAL: {
+                    Object val = globals[code[pc]];
+                    if (val == Env.UNDEFINED) throw Env.undefined((Token)constants[code[pc+1]]);
+                    stack[sp] = Value.encode(val);
+                    refs[sp++] = val;
+                    pc += 2;
+                    break;
+                }
+                case SET_GLOBAL:
+                    if (globals[code[pc]] == Env.UNDEFINED) throw Env.undefined((Token)constants[code[pc+1]]);
+                    globals[code[pc]] = Value.decode(stack[sp-1], refs[sp-1]);
+                    pc += 2;
+                    break;
+                case DEFINE_GLOBAL:
+                    sp--;
+                    globals[code[pc++]] = Value.decode(stack[sp], refs[sp]);
+                    break;
+                case STORE_GLOBAL:
+                    if (globals[code[pc]] == Env.UNDEFINED) throw Env.undefined((Token)constants[code[pc+1]]);
+                    sp--;
+                    globals[code[pc]] = Value.decode(stack[sp], refs[sp]);
+                    pc += 2;
+                    break;
+                case GET_LOCAL: {
+                    int register = code[pc++];
+                    stack[sp] = registers[register];
+                    refs[sp++] = registerRefs[register];
+                    break;
+                }
+                case SET_LOCAL: {
+                    int register = code[pc++];
+                    registers[register] = stack[sp-1];
+                    registerRefs[register] = refs[sp-1];
+                    break;
+                }
+                case DEFINE_LOCAL:
+                case STORE_LOCAL: {
+                    int register = code[pc++];
+                    sp--;
+                    registers[register] = stack[sp];
+                    registerRefs[register] = refs[sp];
+                    break;
+                }
+                case NOT:
+                    stack[sp-1] = Value.bool(!Value.isTruthy(stack[sp-1], refs[sp-1]));
+                    break;
+                case NEGATE: {
+                    long right = stack[sp-1];
+                    int operator = code[pc++];
+                    if (Value.isNumber(right)) {
+                        stack[sp-1] = Value.number(-Value.asNumber(right));
+                    } else {
+                        Object val = Interpreter.unary((Token)constants[operator], Value.decode(right, refs[sp-1]));
+                        stack[sp-1] = Value.encode(val);
+                        refs[sp-1] = val;
+                    }
+                    break;
+                }
+                case EQUAL:
+                    sp--;
+                    stack[sp-1] = Value.bool(Value.isEqual(stack[sp-1], refs[sp-1], stack[sp], refs[sp]));
+                    break;
+                case NOT_EQUAL:
+                    sp--;
+                    stack[sp-1] = Value.bool(!Value.isEqual(stack[sp-1], refs[sp-1], stack[sp], refs[sp]));
+                    break;
+                case BINARY: {
+                    long right = stack[--sp];
+                    long left = stack[sp-1];
+                    Token operator = (Token)constants[code[pc++]];
+                    double b = Value.asNumber(right);
+                    if (!Value.isNumber(left) || !Value.isNumber(right)) {
+                        binary(operator, stack, refs, sp-1);
+                    } else if (operator.type == TokenType.STAR) {
+                        stack[sp-1] = Value.number(Value.asNumber(left) * b);
+                    } else if (operator.type == TokenType.SLASH && b != 0) {
+                        stack[sp-1] = Value.number(Value.asNumber(left) / b);
+                    } else if (operator.type == TokenType.MODULO && b != 0) {
+                        stack[sp-1] = Value.number(Value.asNumber(left) % b);
+                    } else {
+                        binary(operator, stack, refs, sp-1);
+                    }
+                    break;
+                }
+                case XOR: {
+                    sp--;
+                    Object val = Interpreter.xor(
+                        (Token)constants[code[pc++]],
+                        Value.decode(stack[sp-1], refs[sp-1]), Value.decode(stack[sp], refs[sp])
+                    );
+                    stack[sp-1] = Value.encode(val);
+                    refs[sp-1] = val;
+                    break;
+                }
+                case ADD: {
+                    long right = stack[--sp];
+                    long left = stack[sp-1];
+                    int operator = code[pc++];
+                    if (Value.isNumber(left) && Value.isNumber(right)) {
+                        stack[sp-1] = Value.number(Value.asNumber(left) + Value.asNumber(right));
+                    } else {
+                        binary((Token)constants[operator], stack, refs, sp-1);
+                    }
+                    break;
+                }
+                case SUBTRACT: {
+                    long right = stack[--sp];
+                    long left = stack[sp-1];
+                    int operator = code[pc++];
+                    if (Value.isNumber(left) && Value.isNumber(right)) {
+                        stack[sp-1] = Value.number(Value.asNumber(left) - Value.asNumber(right));
+                    } else {
+                        binary((Token)constants[operator], stack, refs, sp-1);
+                    }
+                    break;
+                }
+                case LESS: {
+                    long right = stack[--sp];
+                    long left = stack[sp-1];
+                    int operator = code[pc++];
+                    if (Value.isNumber(left) && Value.isNumber(right)) {
+                        stack[sp-1] = Value.bool(Value.asNumber(left) < Value.asNumber(right));
+                    } else {
+                        binary((Token)constants[operator], stack, refs, sp-1);
+                    }
+                    break;
+                }
+                case LESS_EQUAL: {
+                    long right = stack[--sp];
+                    long left = stack[sp-1];
+                    int operator = code[pc++];
+                    if (Value.isNumber(left) && Value.isNumber(right)) {
+                        stack[sp-1] = Value.bool(Value.asNumber(left) <= Value.asNumber(right));
+                    } else {
+                        binary((Token)constants[operator], stack, refs, sp-1);
+                    }
+                    break;
+                }
+                case GREATER: {
+                    long right = stack[--sp];
+                    long left = stack[sp-1];
+                    int operator = code[pc++];
+                    if (Value.isNumber(left) && Value.isNumber(right)) {
+                        stack[sp-1] = Value.bool(Value.asNumber(left) > Value.asNumber(right));
+                    } else {
+                        binary((Token)constants[operator], stack, refs, sp-1);
+                    }
+                    break;
+                }
+                case GREATER_EQUAL: {
+                    long right = stack[--sp];
+                    long left = stack[sp-1];
+                    int operator = code[pc++];
+                    if (Value.isNumber(left) && Value.isNumber(right)) {
+                        stack[sp-1] = Value.bool(Value.asNumber(left) >= Value.asNumber(right));
+                    } else {
+                        binary((Token)constants[operator], stack, refs, sp-1);
+                    }
+                    break;
+                }
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                case JUMP_IF_NOT_LESS:
+                case JUMP_IF_NOT_LESS_EQUAL:
+                case JUMP_IF_NOT_GREATER:
+                case JUMP_IF_NOT_GREATER_EQUAL: {
+                    sp -= 2;
+                    long left = stack[sp];
+                    long right = stack[sp+1];
+                    if (!Value.isNumber(left) || !Value.isNumber(right)) {
+                        // throws, only numbers compare
+                        Interpreter.checkNumberOperands(
+                            (Token)constants[code[pc+1]], Value.decode(left, refs[sp]), Value.decode(right, refs[sp+1])
+                        );
+                    }
+                    if (!compare(code[pc-1], Value.asNumber(left), Value.asNumber(right))) {
+                        pc = code[pc];
+                    } else {
+                        pc += 2;
+                    }
+                    break;
+                }
+                case JUMP_IF_FALSE:
+                    sp--;
+                    if (Value.isTruthy(stack[sp], refs[sp])) {
+                        pc++;
+                    } else {
+                        pc = code[pc];
+                    }
+                    break;
+                case JUMP_IF_TRUE_KEEP:
+                    if (Value.isTruthy(stack[sp-1], refs[sp-1])) {
+                        pc = code[pc];
+                    } else {
+                        pc++;
+                    }
+                    break;
+                case JUMP_IF_FALSE_KEEP:
+                    if (Value.isTruthy(stack[sp-1], refs[sp-1])) {
+                        pc++;
+                    } else {
+                        pc = code[pc];
+                    }
+                    break;
+                case WRITE:
+                    sp--;
+                    interpreter.write(Value.decode(stack[sp], refs[sp]), (String)constants[code[pc++]]);
+                    break;
+                case READ:
+                case READNUM: {
+                    Token token = (Token)constants[code[pc]];
+                    Object val = interpreter.getUserInput(code[pc-1] == READNUM, token);
+                    int target = code[pc+1];
+                    if (target < 0) {
+                        if (globals[-1 - target] == Env.UNDEFINED) throw Env.undefined((Token)constants[code[pc+2]]);
+                        globals[-1 - target] = val;
+                    } else {
+                        registers[target] = Value.encode(val);
+                        registerRefs[target] = val;
+                    }
+                    pc += 3;
+                    break;
+                }
+                case REPEAT_COUNT: {
+                    long times = stack[sp-1];
+                    if (!Value.isNumber(times) || Value.asNumber(times) % 1 != 0) {
+                        throw new RuntimeError((Token)constants[code[pc]], "Expected integer after 'for'");
+                    }
+                    pc++;
+                    break;
+                }
+                case REPEAT_NEXT: {
+                    double remaining = Value.asNumber(stack[sp-1]);
+                    if (remaining > 0) {
+                        stack[sp-1] = Value.number(remaining - 1);
+                        pc++;
+                    } else {
+                        pc = code[pc];
+                    }
+                    break;
+                }
+                case EVAL: {
+                    Object val = eval(
+                        (Token)constants[code[pc]], (Compiler.EvalSite)constants[code[pc+1]],
+                        Value.decode(stack[sp-1], refs[sp-1]), registers, registerRefs
+                    );
+                    stack[sp-1] = Value.encode(val);
+                    refs[sp-1] = val;
+                    pc += 2;
+                    break;
+                }
+                case LOOP:
+                    if (budget != null) budget.pass(code[pc]);
+                    pc++;
+                    break;
+                case RETURN:
+                    return sp == 0 ? null : Value.decode(stack[sp-1], refs[sp-1]);
+            }
+        }
+    }
+
+    // an eval'd chunk shares the registers of the chunk it was eval'd from
+    private Object eval(
+            Token token, Compiler.EvalSite site, Object source, long[] registers, Object[] registerRefs) {
+        String text = Interpreter.evalSource(token, source);
+        Chunk chunk = (Chunk)interpreter.evals.get(site, text);
+        if (chunk == null) {
+            chunk = Compiler.compileEval(site, Lack.compileEval(interpreter, site.locals, token, text));
+            interpreter.evals.put(site, text, chunk);
+        }
+        return run(chunk, registers, registerRefs);
+    }
+
+    // the operator's full rules on the two values from top up, for when
+    // they aren't both numbers; the result replaces the first
+    private static void binary(Token operator, long[] stack, Object[] refs, int top) {
+        Object val = Interpreter.binary(
+            operator, Value.decode(stack[top], refs[top]), Value.decode(stack[top+1], refs[top+1])
+        );
+        stack[top] = Value.encode(val);
+        refs[top] = val;
+    }
+
+    private static boolean compare(int op, double a, double b) {
+        switch (op) {
+            case JUMP_IF_NOT_LESS: return a < b;
+            case JUMP_IF_NOT_LESS_EQUAL: return a <= b;
+            case JUMP_IF_NOT_GREATER: return a > b;
+            default: return a >= b;
+        }
+    }
+}
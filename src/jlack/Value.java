@@ -0,0 +1,59 @@
+package jlack;
+
+// The VM's values, NaN-boxed into longs. A number is its double's bits and
+// everything else is one of the quiet NaNs below, which no number is ever
+// encoded as. A string can't fit, so the long only says it is one and the
+// string itself sits at the same index of an Object[] kept beside the long[].
+final class Value {
+    // doubleToLongBits turns every NaN into 0x7ff8000000000000, so longs with
+    // all of these bits set are free for the tags
+    private static final long TAGGED = 0x7ffc000000000000L;
+    static final long NIL = TAGGED | 1;
+    static final long FALSE = TAGGED | 2;
+    static final long TRUE = TAGGED | 3;
+    static final long REF = TAGGED | 4;
+
+    private Value() {}
+
+    static boolean isNumber(long value) {
+        return (value & TAGGED) != TAGGED;
+    }
+
+    static long number(double number) {
+        return Double.doubleToLongBits(number);
+    }
+
+    static double asNumber(long value) {
+        return Double.longBitsToDouble(value);
+    }
+
+    static long bool(boolean bool) {
+        return bool ? TRUE : FALSE;
+    }
+
+    // a string encodes as REF and has to be stored beside it
+    static long encode(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Double) return number((double)value);
+        if (value instanceof Boolean) return bool((boolean)value);
+        return REF;
+    }
+
+    static Object decode(long value, Object ref) {
+        if (isNumber(value)) return asNumber(value);
+        if (value == REF) return ref;
+        if (value == NIL) return null;
+        return value == TRUE;
+    }
+
+    static boolean isTruthy(long value, Object ref) {
+        if (value == REF) return Interpreter.isTruthy(ref);
+        return value != NIL && value != FALSE;
+    }
+
+    static boolean isEqual(long a, Object aRef, long b, Object bRef) {
+        if (a == REF && b == REF) return Interpreter.isEqual(aRef, bRef);
+        // numbers are doubleToLongBits, so this is Double.equals for them
+        return a == b;
+    }
+}
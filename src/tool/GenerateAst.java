@@ -16,26 +16,28 @@ public class GenerateAst {
             outputDir = args[0];
         }
 
-        defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
+        defineAst(outputDir, "Expr", null, Arrays.asList(
+            "Assign   : Token name, Expr value | int depth, int slot",
             "Binary   : Expr left, Token operator, Expr right",
             "Grouping :  Expr expression",
             "Literal  : Object value",
             "Unary    : Token operator, Expr right",
             "Logical  : Expr left, Token operator, Expr right",
-            "Variable : Token name",
-            "Eval     : Expr string, Token token"
+            "Xor      : Expr left, Token operator, Expr right",
+            "Variable : Token name | int depth, int slot",
+            "Eval     : Expr string, Token token | Resolver.Locals locals"
         ));
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
+        // statements know where they start, for the profiler
+        defineAst(outputDir, "Stmt", "int line", Arrays.asList(
+            "Block      : List<Stmt> statements | int slots",
             "Expression : Expr expression",
             "Write      : Expr expression, String end",
-            "Read       : Token name, Token token",
-            "ReadNum    : Token name, Token token",
-            "Let        : Token name, Expr initialiser",
+            "Read       : Token name, Token token | int depth, int slot",
+            "ReadNum    : Token name, Token token | int depth, int slot",
+            "Let        : Token name, Expr initialiser | int slot",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-            "While      : Expr condition, Stmt body, Expr increment",
+            "While      : Expr condition, Stmt body, Expr increment | CountedLoop counted",
             "RepeatUntil: Expr condition, Stmt body",
             "RepeatFor  : Expr times, Stmt body, Token forToken",
             "Break      : Token token",
@@ -44,7 +46,7 @@ public class GenerateAst {
     }
 
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, String baseField, List<String> types)
             throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         System.out.println(path);
@@ -61,9 +63,19 @@ public class GenerateAst {
         for (String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim(); 
-            defineType(writer, baseName, className, fields);
+            // fields after '|' are not constructor args, the Resolver fills them in
+            String resolved = null;
+            if (fields.contains("|")) {
+                resolved = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, resolved);
         }
 
+        if (baseField != null) {
+            writer.println();
+            writer.println("    " + baseField + ";");
+        }
         writer.println();
         writer.println("    abstract <R> R accept(Visitor<R> visitor);");
 
@@ -73,7 +85,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String resolvedList) {
         writer.println("    static class " + className + " extends " +
                 baseName + " {");
 
@@ -98,6 +110,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("        final " + field + ";");
         }
+        if (resolvedList != null) {
+            for (String field : resolvedList.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
 
         writer.println("    }");
     }